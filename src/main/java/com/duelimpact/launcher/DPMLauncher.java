@@ -1,6 +1,7 @@
 package com.duelimpact.launcher;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import com.duelimpact.services.FileWatcher;
 import com.duelimpact.services.PropertiesService;
@@ -24,6 +25,16 @@ public class DPMLauncher {
 			ZipPrinter.subscribe();
 			System.out.printf("Compiling ACS in %s...\n", PropertiesService.getArchive().getSource());
 			FileWatcher.compileAndCleanAcs(PropertiesService.getArchive().getSource());
+		} else if(StringService.stringIs(args, 0, "compact")) {
+			FileWatcher.compactArchive(PropertiesService.getArchive().getDestination());
+		} else if(StringService.stringIs(args, 0, "merge") && args.length >= 3) {
+			FileWatcher.mergeArchives(args[1], Arrays.copyOfRange(args, 2, args.length));
+		} else if(StringService.stringIs(args, 0, "verify") && args.length >= 2) {
+			FileWatcher.verifyArchive(args[1]);
+		} else if(StringService.stringIs(args, 0, "salvage") && args.length >= 2) {
+			FileWatcher.salvageArchive(args[1]);
+		} else if(StringService.stringIs(args, 0, "recover")) {
+			FileWatcher.recoverArchive(args.length >= 2 ? args[1] : PropertiesService.getArchive().getDestination());
 		}
 		
 		else {
@@ -33,6 +44,15 @@ public class DPMLauncher {
 							 + "        When a change is noted, it will be added to the pk3.\n"
 							 + "build - Constructs a pk3 from the directory specified in archive.properties.\n"
 							 + "acc   - Compiles all available ACS files in the source folder.\n"
+							 + "compact - Repacks the pk3 that start writes to, removing the free space\n"
+							 + "          left behind by updates.\n"
+							 + "merge <output> <pk3>... - Combines pk3s into a new pk3 without recompressing.\n"
+							 + "          Entries in later pk3s replace those in earlier ones.\n"
+							 + "verify <pk3> - Checks every entry of a pk3 against its checksum.\n"
+							 + "salvage <pk3> - Rebuilds the central directory of a damaged pk3 from the\n"
+							 + "          entries still intact in it.\n"
+							 + "recover [pk3] - Repairs a pk3 left behind by a watch session that was cut\n"
+							 + "          short, using its journal. Defaults to the pk3 start writes to.\n"
 							 + "\n"
 							 + "For additional options, check archive.properties for details.");
 		}
@@ -9,6 +9,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
@@ -16,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.zip.ZipEntry;
@@ -25,6 +27,8 @@ import com.duelimpact.entities.AcsCompiler;
 
 import me.michael4797.util.ArchiveEntry;
 import me.michael4797.util.EntrySource;
+import me.michael4797.util.ExtentAllocator;
+import me.michael4797.util.SalvageReport;
 import me.michael4797.util.ZipArchive;
 
 public class FileWatcher {
@@ -62,7 +66,13 @@ public class FileWatcher {
 			if(destFile.exists()) {
 				destFile.delete();
 			}
-			zip = new ZipArchive(destFile);
+			ZipArchive.getJournalFile(destFile).delete();
+			zip = PropertiesService.inMemory() ? ZipArchive.inMemory() : new ZipArchive(destFile);
+			zip.setAlignment(PropertiesService.getAlignment());
+			zip.setDeduplicate(PropertiesService.deduplicate());
+			if(PropertiesService.journal() && !PropertiesService.inMemory()) {
+				zip.setJournaled(true);
+			}
 			File source = new File(sourceDir);
 			
 			cleanAcs(sourceDir);
@@ -75,8 +85,15 @@ public class FileWatcher {
 					System.out.printf("\n%s - Updating archive %s...\n", timeStamp, destFile.getName());
 					checkAcs(updates);
 					
+					zip.beginBatch();
+					updates = replaceEntries(updates);
+					removeDirectories(updates);
 					zip.removeAll(findEntries(updates));
 					zip.addAll(findSources(updates));
+					zip.commit();
+					if(PropertiesService.inMemory()) {
+						zip.publishTo(destFile.toPath());
+					}
 				}
 
 				Thread.sleep(2000);
@@ -87,12 +104,40 @@ public class FileWatcher {
 		}
 	}
 	
+	private static Collection<File> replaceEntries(Collection<File> files) throws IOException {
+		Collection<File> result = new ArrayDeque<>();
+		
+		for(File file : files) {
+			String path = getEntryName(file);
+			if(!file.isDirectory() && file.exists() && zip.containsEntry(path)) {
+				zip.replace(zip.getEntry(path), new EntrySource(path, file));
+			} else {
+				result.add(file);
+			}
+		}
+		
+		return result;
+	}
+	
+	private static void removeDirectories(Collection<File> files) throws IOException {
+		for(File file : files) {
+			String path = getEntryName(file);
+			if(!file.exists() && !zip.containsEntry(path)) {
+				zip.removeByPrefix(path + "/");
+			}
+		}
+	}
+	
+	private static String getEntryName(File file) {
+		String path = file.getPath().replaceAll("\\\\", "/");
+		return path.substring(path.indexOf("/")+1, path.length());
+	}
+	
 	private static Collection<ArchiveEntry> findEntries(Collection<File> files) {
 		Collection<ArchiveEntry> result = new ArrayDeque<>();
 		
 		for(File file : files) {
-			String path = file.getPath().replaceAll("\\\\", "/");
-			path = path.substring(path.indexOf("/")+1, path.length());
+			String path = getEntryName(file);
 			if(zip.containsEntry(path)) {
 				result.add(zip.getEntry(path));
 			}
@@ -106,8 +151,7 @@ public class FileWatcher {
 		
 		for(File file : files) {
 			if(!file.isDirectory() && file.exists()) {
-				String path = file.getPath().replaceAll("\\\\", "/");
-				path = path.substring(path.indexOf("/")+1, path.length());
+				String path = getEntryName(file);
 				result.add(new EntrySource(path, file));
 			}
 		}
@@ -331,6 +375,134 @@ public class FileWatcher {
 		}
 	}
 	
+	public static void compactArchive(String archiveDir) {
+		try {
+			Path archive = Paths.get(archiveDir);
+			Path compacted = archive.resolveSibling(archive.getFileName() + ".compact");
+			long before = Files.size(archive);
+			
+			System.out.printf("Compacting archive %s...\n", archiveDir);
+			// A read only archive isn't recovered when it's opened, so a change cut short has to be dealt with first
+			if(ZipArchive.recover(archive.toFile())) {
+				System.out.println("Recovered an interrupted change from the archive's journal.");
+			}
+			try(ZipArchive archiveZip = new ZipArchive(archive.toFile(), true)) {
+				archiveZip.compact(compacted, PropertiesService.getAlignment());
+			}
+			Files.move(compacted, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			ZipArchive.getJournalFile(archive.toFile()).delete();
+			
+			System.out.printf("Archive compacted from %d to %d bytes.\n", before, Files.size(archive));
+		} catch (Exception e) {
+			System.err.println("Exception occurred while compacting the archive.");
+			e.printStackTrace();
+		}
+	}
+	
+	public static void verifyArchive(String archiveDir) {
+		try {
+			System.out.printf("Verifying archive %s...\n", archiveDir);
+			int checked = 0;
+			int corrupt = 0;
+			try(ZipArchive archiveZip = ZipArchive.openMapped(new File(archiveDir))) {
+				for(ArchiveEntry entry : archiveZip) {
+					checked++;
+					try {
+						archiveZip.verify(entry);
+					} catch (IOException e) {
+						corrupt++;
+						System.out.printf("%s is corrupt: %s\n", entry.name, e.getMessage());
+					}
+				}
+			}
+			
+			System.out.printf("Checked %d entries, %d corrupt.\n", checked, corrupt);
+		} catch (Exception e) {
+			System.err.println("Exception occurred while verifying the archive.");
+			e.printStackTrace();
+		}
+	}
+	
+	public static void recoverArchive(String archiveDir) {
+		try {
+			File archiveFile = new File(archiveDir);
+			if(!ZipArchive.getJournalFile(archiveFile).exists()) {
+				System.out.printf("%s has no journal, nothing to recover.\n", archiveDir);
+				return;
+			}
+			
+			long start = System.currentTimeMillis();
+			try(ZipArchive archiveZip = new ZipArchive(archiveFile)) {
+				System.out.printf("Recovered %s with %d entries in %dms.\n", archiveDir, archiveZip.entryCount(), System.currentTimeMillis() - start);
+			}
+		} catch (Exception e) {
+			System.err.println("Exception occurred while recovering the archive.");
+			e.printStackTrace();
+		}
+	}
+	
+	public static void salvageArchive(String archiveDir) {
+		try {
+			System.out.printf("Scanning %s for entries...\n", archiveDir);
+			long start = System.currentTimeMillis();
+			SalvageReport report = ZipArchive.salvage(new File(archiveDir), Runtime.getRuntime().availableProcessors());
+			System.out.printf("Rebuilt the central directory with %d entries in %dms.\n", report.getEntryCount(), System.currentTimeMillis() - start);
+			for(String name : report.getAmbiguousNames()) {
+				System.out.printf("Warning: %s has copies written within the same two seconds. The one kept may be out of date.\n", name);
+			}
+		} catch (Exception e) {
+			System.err.println("Exception occurred while salvaging the archive.");
+			e.printStackTrace();
+		}
+	}
+	
+	public static void mergeArchives(String destDir, String[] archiveDirs) {
+		try {
+			// The destination may also be one of the inputs, so it is only replaced once every input is closed
+			File destFile = new File(destDir);
+			Path destination = destFile.toPath();
+			Path merging = destination.resolveSibling(destination.getFileName() + ".merge");
+			Files.deleteIfExists(merging);
+			
+			int entryCount;
+			Collection<ZipArchive> archives = new ArrayDeque<>();
+			try {
+				try(ZipArchive merged = new ZipArchive(merging.toFile(), new ExtentAllocator())) {
+					Map<String, ZipArchive> winners = new LinkedHashMap<>();
+					for(String archiveDir : archiveDirs) {
+						System.out.printf("Reading archive %s...\n", archiveDir);
+						ZipArchive archiveZip = new ZipArchive(new File(archiveDir), true);
+						archives.add(archiveZip);
+						for(ArchiveEntry entry : archiveZip) {
+							winners.put(entry.name, archiveZip);
+						}
+					}
+					
+					merged.beginBatch();
+					for(Map.Entry<String, ZipArchive> winner : winners.entrySet()) {
+						merged.copyFrom(winner.getValue(), winner.getValue().getEntry(winner.getKey()));
+					}
+					merged.commit();
+					entryCount = merged.entryCount();
+				} finally {
+					for(ZipArchive archiveZip : archives) {
+						archiveZip.close();
+					}
+				}
+				
+				Files.move(merging, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				ZipArchive.getJournalFile(destFile).delete();
+			} finally {
+				Files.deleteIfExists(merging);
+			}
+			
+			System.out.printf("Merged %d entries into %s (%d bytes).\n", entryCount, destDir, destFile.length());
+		} catch (Exception e) {
+			System.err.println("Exception occurred while merging archives.");
+			e.printStackTrace();
+		}
+	}
+	
 	public static void raiseWarning(int type) {
 		warnCount[type]++;
 		if(!watchMode && PropertiesService.killOnWarn()) {
@@ -13,6 +13,10 @@ public class PropertiesService {
 	private static String acsExclusions[];
 	private static boolean logAcs;
 	private static boolean killOnWarn;
+	private static int alignment = 1;
+	private static boolean deduplicate;
+	private static boolean inMemory;
+	private static boolean journal;
 	
 	static {
 		archive = new Archive();
@@ -34,6 +38,13 @@ public class PropertiesService {
 			
 			killOnWarn = Boolean.parseBoolean(prop.getProperty("archive.build.killonwarn"));
 			
+			if(prop.getProperty("archive.alignment") != null) {
+				alignment = Integer.parseInt(prop.getProperty("archive.alignment"));
+			}
+			deduplicate = Boolean.parseBoolean(prop.getProperty("archive.deduplicate"));
+			inMemory = Boolean.parseBoolean(prop.getProperty("archive.memory"));
+			journal = Boolean.parseBoolean(prop.getProperty("archive.journal"));
+			
 		} catch (Exception e) {
 			System.err.println("Could not load archive properties. Please ensure archive.properties is in the same file as dam.jar.");
 			e.printStackTrace();
@@ -65,4 +76,20 @@ public class PropertiesService {
 	public static boolean killOnWarn() {
 		return killOnWarn;
 	}
+	
+	public static int getAlignment() {
+		return alignment;
+	}
+	
+	public static boolean deduplicate() {
+		return deduplicate;
+	}
+	
+	public static boolean inMemory() {
+		return inMemory;
+	}
+	
+	public static boolean journal() {
+		return journal;
+	}
 }
@@ -1,6 +1,7 @@
 package me.michael4797.util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.zip.CRC32;
@@ -9,21 +10,30 @@ import java.util.zip.Inflater;
 
 public class ArchiveEntry {
 
-	private static final CRC32 crc = new CRC32();
 	private static final short COMPLIANT_VERSION_NUMBER = 20;
+	protected static final short ZIP64_VERSION_NUMBER = 45;
+	private static final short ALIGNMENT_EXTRA_ID = (short) 55605;
+	private static final int ALIGNMENT_EXTRA_SIZE = 6;
+	private static final int CHUNK_SIZE = 65536;
 
 	public final String name;
 	public final short compressionType;
 	public final short lastModifiedTime;
 	public final short lastModifiedDate;
 	public final int crc32;
-	public final int compressedSize;
-	public final int uncompressedSize;
+	public final long compressedSize;
+	public final long uncompressedSize;
 	private long position;
 	private long directoryOffset;
+	private int headerSize;
+	private byte[] directoryRecord;
+	
+	private EntryTable table;
+	private int tableSlot;
+	private int tableStamp;
 
 	
-	protected ArchiveEntry(short compressionType, short lastModifiedTime, short lastModifiedDate, int crc32, int compressedSize, int uncompressedSize, String name, long position, long directoryOffset) throws IOException{
+	protected ArchiveEntry(short compressionType, short lastModifiedTime, short lastModifiedDate, int crc32, long compressedSize, long uncompressedSize, String name, long position, long directoryOffset) throws IOException{
 		
 		this.compressionType = compressionType;
 		this.lastModifiedTime = lastModifiedTime;
@@ -34,10 +44,11 @@ public class ArchiveEntry {
 		this.name = name;
 		this.position = position;
 		this.directoryOffset = directoryOffset;
+		this.headerSize = -1;
 	}
 
 	
-	protected ArchiveEntry(String name, byte[] compressedData, short lastModifiedTime, short lastModifiedDate, short compressionType, long directoryOffset, int crc32, int compressedSize, int uncompressedSize, BinaryRandomAccess output) throws IOException{
+	protected ArchiveEntry(String name, byte[] compressedData, short lastModifiedTime, short lastModifiedDate, short compressionType, long directoryOffset, int crc32, int compressedSize, int uncompressedSize, int alignment, BinaryRandomAccess output) throws IOException{
 		
 		if(name.length() > 65535)
 			throw new IOException("Entry name too long");
@@ -52,20 +63,117 @@ public class ArchiveEntry {
 		this.directoryOffset = directoryOffset;
 
 		position = output.getFilePointer();
+		writeLocalHeader(output, alignment);
+		
+		output.writeByteArray(compressedData, 0, compressedSize);
+	}
+	
+	
+	/**
+	 * Writes the local header of a copy of the specified entry at the output's current
+	 * position. The copy's compressed data must be written directly after the header.
+	 */
+	protected ArchiveEntry(ArchiveEntry entry, long directoryOffset, int alignment, BinaryRandomAccess output) throws IOException{
+		
+		this(entry, output.getFilePointer(), directoryOffset, alignment, output);
+	}
+	
+	
+	/**
+	 * Writes the local header of a copy of the specified entry to the output, padded
+	 * to align the copy's data as if the header were placed at the specified position.
+	 */
+	protected ArchiveEntry(ArchiveEntry entry, long position, long directoryOffset, int alignment, BinaryOutput output) throws IOException{
+		
+		this.name = entry.name;
+		this.compressionType = entry.compressionType;
+		this.lastModifiedTime = entry.lastModifiedTime;
+		this.lastModifiedDate = entry.lastModifiedDate;
+		this.crc32 = entry.crc32;
+		this.compressedSize = entry.compressedSize;
+		this.uncompressedSize = entry.uncompressedSize;
+		this.directoryOffset = directoryOffset;
+		this.position = position;
+		
+		writeLocalHeader(output, alignment);
+	}
+	
+	
+	/**
+	 * @return The size of the local header written for an entry with the specified
+	 * name and sizes, including the ZIP64 extra field if either size needs it, but not
+	 * including any padding added to align the entry's data.
+	 */
+	protected static int getLocalHeaderSize(String name, long compressedSize, long uncompressedSize) {
+		
+		if(compressedSize >= ZipArchive.ZIP64_MAGIC || uncompressedSize >= ZipArchive.ZIP64_MAGIC)
+			return 30 + name.length() + 20;
+		
+		return 30 + name.length();
+	}
+	
+	
+	/**
+	 * @return The most padding that can be added to the local header of an entry
+	 * with the specified compression type to align its data.
+	 */
+	protected static int getMaximumPadding(short compressionType, int alignment) {
+		
+		if(alignment <= 1 || compressionType != ZipArchive.COMPRESSION_TYPE_NONE)
+			return 0;
+		
+		return ALIGNMENT_EXTRA_SIZE + alignment - 1;
+	}
+	
+	
+	/**
+	 * Writes this entry's local header at the entry's position. Stored entries are
+	 * aligned by adding an extra field that pads the header, which holds the
+	 * alignment in the same way as Android's zipalign.
+	 */
+	private void writeLocalHeader(BinaryOutput output, int alignment) throws IOException {
+		
+		//A local ZIP64 field has to hold both sizes, unlike the one in the central directory
+		headerSize = getLocalHeaderSize(name, compressedSize, uncompressedSize);
+		boolean zip64 = headerSize > 30 + name.length();
+		
+		int padding = 0;
+		if(getMaximumPadding(compressionType, alignment) > 0) {
+			
+			long dataPosition = position + headerSize + ALIGNMENT_EXTRA_SIZE;
+			padding = ALIGNMENT_EXTRA_SIZE + (int) ((alignment - (dataPosition & (alignment - 1))) & (alignment - 1));
+			headerSize += padding;
+		}
+		
 		output.writeInt(ZipArchive.LOCF_SIGNATURE);
-		output.writeShort(COMPLIANT_VERSION_NUMBER);
+		output.writeShort(zip64 ? ZIP64_VERSION_NUMBER : COMPLIANT_VERSION_NUMBER);
 		output.writeShort((short) 0);
 		output.writeShort(compressionType);
 		output.writeShort(lastModifiedTime);
 		output.writeShort(lastModifiedDate);
 		output.writeInt(crc32);
-		output.writeInt(compressedSize);
-		output.writeInt(uncompressedSize);
+		output.writeInt(zip64 ? -1 : (int) compressedSize);
+		output.writeInt(zip64 ? -1 : (int) uncompressedSize);
 		output.writeShort((short) name.length());
-		output.writeShort((short) 0);
+		output.writeShort((short) (headerSize - 30 - name.length()));
 		output.writeString(name, name.length());
 		
-		output.writeByteArray(compressedData, 0, compressedSize);
+		if(zip64) {
+			
+			output.writeShort(ZipArchive.ZIP64_EXTRA_ID);
+			output.writeShort((short) 16);
+			output.writeLong(uncompressedSize);
+			output.writeLong(compressedSize);
+		}
+		
+		if(padding > 0) {
+			
+			output.writeShort(ALIGNMENT_EXTRA_ID);
+			output.writeShort((short) (padding - 4));
+			output.writeShort((short) alignment);
+			for(int i = ALIGNMENT_EXTRA_SIZE; i < padding; ++i)
+				output.writeByte((byte) 0);
+		}
 	}
 	
 	
@@ -77,7 +185,7 @@ public class ArchiveEntry {
 	
 	protected long getFilePosition() {
 		
-		return position + 30 + name.length();
+		return position + headerSize;
 	}
 	
 	
@@ -87,9 +195,42 @@ public class ArchiveEntry {
 	}
 	
 	
+	protected void setDirectoryOffset(long directoryOffset) {
+		
+		this.directoryOffset = directoryOffset;
+		if(table != null)
+			table.update(this);
+	}
+	
+	
+	/**
+	 * @return The size of this entry's central directory record, including the
+	 * ZIP64 extra field if the entry is too large or too far into the archive to be
+	 * described by the standard record.
+	 */
+	protected long getDirectorySize() {
+		
+		return 46 + name.length() + getZip64ExtraSize(position);
+	}
+	
+	
+	private int getZip64ExtraSize(long position) {
+		
+		int fields = 0;
+		if(uncompressedSize >= ZipArchive.ZIP64_MAGIC)
+			++fields;
+		if(compressedSize >= ZipArchive.ZIP64_MAGIC)
+			++fields;
+		if(position >= ZipArchive.ZIP64_MAGIC)
+			++fields;
+		
+		return fields == 0 ? 0 : 4 + 8*fields;
+	}
+	
+	
 	protected long getHeaderSize() {
 		
-		return 30 + name.length();
+		return headerSize;
 	}
 	
 	
@@ -101,19 +242,130 @@ public class ArchiveEntry {
 	
 	protected long getTotalSize() {
 		
-		return compressedSize + 30 + name.length();
+		return compressedSize + headerSize;
+	}
+	
+	
+	/**
+	 * Reads the size of this entry's local header, which is not stored in the
+	 * central directory. Other zip tools often add extra fields to the local header
+	 * that are not in the central directory, so the size can only be known by reading
+	 * it. Entries that were written by this archive already know their header size.
+	 * <p>
+	 * This is called while only the archive's read lock is held, so threads reading
+	 * the same entry may store its header size at the same time. That is safe because
+	 * each stores the same value with a single write of an int, both here and in the
+	 * table through {@link EntryTable#cacheHeaderSize(ArchiveEntry)}.
+	 */
+	protected void readLocalHeader(BinaryRandomAccess from) throws IOException {
+		
+		if(headerSize >= 0)
+			return;
+		
+		headerSize = readHeaderSize(from, position);
+		if(table != null)
+			table.cacheHeaderSize(this);
+	}
+	
+	
+	/**
+	 * Reads the size of the local header at the specified position, without needing
+	 * an entry for it.
+	 * @param from The file holding the header.
+	 * @param position The position of the header.
+	 * @return The size of the header, including its name and extra field.
+	 * @throws IOException If an error is encountered while reading, or there is no
+	 * local header at the position.
+	 */
+	protected static int readHeaderSize(BinaryRandomAccess from, long position) throws IOException {
+		
+		byte[] header = new byte[30];
+		from.read(position, header, 0, header.length);
+		BinaryReader reader = new BinaryReader(header);
+		reader.close();
+		
+		if(reader.readInt() != ZipArchive.LOCF_SIGNATURE)
+			throw new IOException("Corrupt zip archive");
+		
+		reader.skip(22); //Skip to the name and extra field lengths
+		int fileNameLength = reader.readShort()&65535;
+		int fileExtraLength = reader.readShort()&65535;
+		return 30 + fileNameLength + fileExtraLength;
+	}
+	
+	
+	/**
+	 * @return A copy of this entry that isn't bound to a table, so reading it never
+	 * touches the table this entry came from.
+	 */
+	protected ArchiveEntry detach() throws IOException {
+		
+		ArchiveEntry copy = new ArchiveEntry(compressionType, lastModifiedTime, lastModifiedDate, crc32, compressedSize, uncompressedSize, name, position, directoryOffset);
+		copy.headerSize = headerSize;
+		return copy;
+	}
+	
+	
+	protected void setHeaderSize(int headerSize) {
+		
+		this.headerSize = headerSize;
+	}
+	
+	
+	/**
+	 * Ties this entry to the slot of an {@link EntryTable} that stores its state
+	 * elsewhere. Changes made to the entry's position, header size and directory
+	 * offset are passed on to the table.
+	 */
+	protected void bind(EntryTable table, int slot, int stamp) {
+		
+		this.table = table;
+		this.tableSlot = slot;
+		this.tableStamp = stamp;
+	}
+	
+	
+	protected EntryTable getTable() {
+		
+		return table;
+	}
+	
+	
+	protected int getTableSlot() {
+		
+		return tableSlot;
+	}
+	
+	
+	protected int getTableStamp() {
+		
+		return tableStamp;
 	}
 
 
+	/**
+	 * Changes the position of this entry without moving its data, for entries that
+	 * share their data with an entry that has already been moved.
+	 */
+	protected void setHeaderPosition(long position) {
+		
+		this.position = position;
+		directoryRecord = null;
+		if(table != null)
+			table.update(this);
+	}
+	
+	
 	protected void moveTo(long position, BinaryRandomAccess output) throws IOException {
 		
 		if(position != this.position) {
 			
-			output.seek(this.position);
-			byte[] compressedData = output.readByteArray((int) getTotalSize());
-			output.seek(position);
-			output.writeByteArray(compressedData);
+			readLocalHeader(output);
+			output.copy(this.position, position, getTotalSize());
 			this.position = position;
+			directoryRecord = null;
+			if(table != null)
+				table.update(this);
 		}			
 	}
 	
@@ -125,78 +377,211 @@ public class ArchiveEntry {
 	}
 	
 	
-	protected void moveDirectoryOffset(long shift) {
+	protected void writeDirectoryListing(long directoryPosition, BinaryRandomAccess output) throws IOException {
 		
-		directoryOffset += shift;
+		byte[] record = getDirectoryRecord();
+		output.write(directoryPosition + directoryOffset, record, 0, record.length);
 	}
 	
 	
-	protected void writeDirectoryListing(long directoryPosition, BinaryRandomAccess output) throws IOException {
+	/**
+	 * @return This entry's central directory record. The record is kept until the
+	 * entry is moved, so rewriting the directory doesn't need to serialize it again.
+	 * Entries bound to a table keep it in the table, so later views share it.
+	 */
+	protected byte[] getDirectoryRecord() throws IOException {
+		
+		if(directoryRecord == null && table != null)
+			directoryRecord = table.getDirectoryRecord(this);
+		
+		if(directoryRecord == null) {
+			
+			BinaryWriter writer = new BinaryWriter((int) getDirectorySize());
+			writeDirectoryListing(writer, position);
+			directoryRecord = writer.getRawData();
+			if(table != null)
+				table.cacheDirectoryRecord(this, directoryRecord);
+		}
+		
+		return directoryRecord;
+	}
+	
+	
+	/**
+	 * Writes the central directory record for this entry as if its local header were
+	 * stored at the specified position.
+	 */
+	protected void writeDirectoryListing(BinaryOutput output, long position) throws IOException {
+		
+		int zip64ExtraSize = getZip64ExtraSize(position);
+		short version = zip64ExtraSize == 0 ? COMPLIANT_VERSION_NUMBER : ZIP64_VERSION_NUMBER;
 		
-		output.seek(directoryPosition + directoryOffset);
 		output.writeInt(ZipArchive.CD_SIGNATURE);
-		output.writeShort(COMPLIANT_VERSION_NUMBER);
-		output.writeShort(COMPLIANT_VERSION_NUMBER);
+		output.writeShort(version);
+		output.writeShort(version);
 		output.writeShort((short) 0);
 		output.writeShort(compressionType);
 		output.writeShort(lastModifiedTime);
 		output.writeShort(lastModifiedDate);
 		output.writeInt(crc32);
-		output.writeInt(compressedSize);
-		output.writeInt(uncompressedSize);
+		output.writeInt((int) Math.min(compressedSize, ZipArchive.ZIP64_MAGIC));
+		output.writeInt((int) Math.min(uncompressedSize, ZipArchive.ZIP64_MAGIC));
 		output.writeShort((short) name.length());
-		output.writeShort((short) 0);
+		output.writeShort((short) zip64ExtraSize);
 		output.writeShort((short) 0);
 		output.writeShort((short) 0);
 		output.writeShort((short) 1);
 		output.writeInt(32);
-		output.writeInt((int) position);
+		output.writeInt((int) Math.min(position, ZipArchive.ZIP64_MAGIC));
 		output.writeString(name, name.length());
+		
+		if(zip64ExtraSize == 0)
+			return;
+		
+		output.writeShort(ZipArchive.ZIP64_EXTRA_ID);
+		output.writeShort((short) (zip64ExtraSize - 4));
+		if(uncompressedSize >= ZipArchive.ZIP64_MAGIC)
+			output.writeLong(uncompressedSize);
+		if(compressedSize >= ZipArchive.ZIP64_MAGIC)
+			output.writeLong(compressedSize);
+		if(position >= ZipArchive.ZIP64_MAGIC)
+			output.writeLong(position);
 	}
 	
 	
 	protected byte[] extract(BinaryRandomAccess from) throws IOException {
 		
-		from.seek(getFilePosition());
-		byte[] compressedData = from.readByteArray(compressedSize);
-		
 		if(compressionType == ZipArchive.COMPRESSION_TYPE_NONE)
-			return checkCRC32(compressedData, crc32);
+			return checkCRC32(getCompressedData(from), crc32);
+		else if(compressionType != ZipArchive.COMPRESSION_TYPE_DEFLATE)
+			throw new IOException("Unsupported compression type " + compressionType);
+		
+		readLocalHeader(from);
+		byte[] uncompressedData = new byte[getArraySize(uncompressedSize)];
+		if(inflate(from, uncompressedData, null) != uncompressedSize)
+			throw new IOException("Corrupted zip archive");
+		
+		return checkCRC32(uncompressedData, crc32);
+	}
+	
+	
+	/**
+	 * Checks the entry's data against its checksum without keeping the data. Stored
+	 * data is checked where it lies when the file is memory mapped, and compressed data
+	 * is inflated a chunk at a time, so entries of any size can be checked in a small
+	 * amount of memory.
+	 * @throws IOException If the data doesn't match the checksum, or can't be read.
+	 */
+	protected void verify(BinaryRandomAccess from) throws IOException {
+		
+		readLocalHeader(from);
+		CRC32 checksum = new CRC32();
+		byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(compressedSize, uncompressedSize))];
+		if(compressionType == ZipArchive.COMPRESSION_TYPE_NONE) {
+			
+			ByteBuffer mapped = from.slice(getFilePosition(), compressedSize);
+			if(mapped != null)
+				checksum.update(mapped);
+			else {
+				
+				for(long read = 0; read < compressedSize; read += chunk.length) {
+					
+					int length = (int) Math.min(chunk.length, compressedSize - read);
+					from.read(getFilePosition() + read, chunk, 0, length);
+					checksum.update(chunk, 0, length);
+				}
+			}
+		}
 		else if(compressionType != ZipArchive.COMPRESSION_TYPE_DEFLATE)
 			throw new IOException("Unsupported compression type " + compressionType);
+		else if(inflate(from, chunk, checksum) != uncompressedSize)
+			throw new IOException("Corrupted zip archive");
+		
+		if((int) checksum.getValue() != crc32)
+			throw new IOException("Corrupted zip archive");
+	}
+	
+	
+	/**
+	 * Inflates the entry's data, passing the compressed data to the inflater a chunk
+	 * at a time so that it never has to be held in memory all at once.
+	 * @param output The array to inflate into. If a checksum is given, the array is
+	 * reused for each chunk of output and only the checksum is kept.
+	 * @param checksum The checksum to update with the output, or null to inflate all
+	 * of the data into the output array.
+	 * @return The number of bytes inflated, which is less than the uncompressed size
+	 * if the data is truncated or the output array is too small.
+	 */
+	private long inflate(BinaryRandomAccess from, byte[] output, CRC32 checksum) throws IOException {
 		
-		Inflater decompresser = new Inflater(true);
-		decompresser.setInput(compressedData, 0, compressedSize);
-		byte[] uncompressedData = new byte[uncompressedSize];
+		Inflater inflater = InflaterPool.acquire();
+		byte[] input = new byte[(int) Math.min(CHUNK_SIZE, Math.max(compressedSize, 1))];
+		long read = 0;
+		long inflated = 0;
+		int offset = 0;
 		
 		try {
 			
-			if(decompresser.inflate(uncompressedData) != uncompressedSize)
-				throw new IOException("Corrupted zip archive");
-		} catch (DataFormatException e) {
+			while(!inflater.finished()) {
+				
+				if(inflater.needsInput()) {
+					
+					if(read >= compressedSize)
+						break;
+					
+					int length = (int) Math.min(input.length, compressedSize - read);
+					from.read(getFilePosition() + read, input, 0, length);
+					inflater.setInput(input, 0, length);
+					read += length;
+				}
+				
+				int length = inflater.inflate(output, offset, output.length - offset);
+				inflated += length;
+				if(checksum != null)
+					checksum.update(output, 0, length);
+				else
+					offset += length;
+				
+				//Either the output is full or the inflater is waiting on a dictionary, neither of which a valid entry does
+				if(length == 0 && !inflater.needsInput() && !inflater.finished())
+					break;
+			}
+		}catch(DataFormatException e) {
 			
 			throw new IOException(e);
+		}finally {
+			
+			InflaterPool.release(inflater);
 		}
 		
-		decompresser.end();
-		return checkCRC32(uncompressedData, crc32);
+		return inflated;
 	}
 
 
 	public byte[] getCompressedData(BinaryRandomAccess source) throws IOException {
 
-		source.seek(getFilePosition());
-		return source.readByteArray(compressedSize);
+		readLocalHeader(source);
+		byte[] compressedData = new byte[getArraySize(compressedSize)];
+		source.read(getFilePosition(), compressedData, 0, compressedData.length);
+		return compressedData;
 	}
 	
 	
-	protected synchronized static int getCRC32(byte[] data) {
+	private int getArraySize(long size) throws IOException {
 		
-		crc.update(data);
-		int value = (int) crc.getValue();
-		crc.reset();
+		if(size > Integer.MAX_VALUE - 8)
+			throw new IOException("Entry \"" + name + "\" is too large to be read into memory");
+		
+		return (int) size;
+	}
+	
+	
+	protected static int getCRC32(byte[] data) {
 		
-		return value;
+		//Each call gets its own checksum, so threads checking entries don't wait on each other
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
 	}
 	
 	
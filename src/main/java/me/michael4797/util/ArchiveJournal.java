@@ -0,0 +1,203 @@
+package me.michael4797.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A small file kept beside an archive that lets the archive be put back into a valid
+ * state if the program dies while changing it. Before the archive is first changed
+ * after its central directory was written, the journal records everything from the
+ * start of that directory to the end of the file. While the change is in progress,
+ * the archive holds on to the blocks it frees, so the entries listed in the recorded
+ * directory are never overwritten. Once the entries are on disk, the new directory is
+ * recorded as well, before it is written to the archive.
+ * <p>
+ * When the archive is next opened, a new directory that was recorded in full is
+ * written again, otherwise the recorded old directory is written back. Either way only
+ * the end of the file is written, so recovering takes no longer than writing the
+ * central directory does.
+ */
+class ArchiveJournal{
+
+	private static final int BEGIN_SIGNATURE = 1246774596;
+	private static final int COMMIT_SIGNATURE = 1129145668;
+	private static final int RECORD_SIZE = 20;
+
+	private final File file;
+	private final FileChannel channel;
+	private long size;
+
+
+	/**
+	 * Creates an empty journal, replacing any journal already in the file.
+	 * @param file The file to keep the journal in.
+	 * @throws IOException If the file can't be created.
+	 */
+	protected ArchiveJournal(File file) throws IOException {
+
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(0);
+	}
+
+
+	/**
+	 * Records the end of the archive as it was before the change that is starting,
+	 * replacing whatever the journal held.
+	 * @param position The position of the central directory.
+	 * @param tail Everything from the central directory to the end of the archive.
+	 * @throws IOException If the record can't be written.
+	 */
+	protected void begin(long position, byte[] tail) throws IOException {
+
+		channel.truncate(0);
+		size = 0;
+		append(BEGIN_SIGNATURE, position, tail, tail.length);
+	}
+
+
+	/**
+	 * Records the end of the archive as it will be once the change is finished. The
+	 * entries listed by the new directory must already be on disk.
+	 * @param position The position of the new central directory.
+	 * @param tail The new central directory followed by the end of central directory record.
+	 * @param length The number of bytes of the array that are used.
+	 * @throws IOException If the record can't be written.
+	 */
+	protected void commit(long position, byte[] tail, int length) throws IOException {
+
+		append(COMMIT_SIGNATURE, position, tail, length);
+	}
+
+
+	/**
+	 * Empties the journal once the new central directory is on disk. Clearing doesn't
+	 * need to reach the disk, since the new directory is only written again if it does not.
+	 */
+	protected void clear() throws IOException {
+
+		channel.truncate(0);
+		size = 0;
+	}
+
+
+	private void append(int signature, long position, byte[] tail, int length) throws IOException {
+
+		BinaryWriter record = new BinaryWriter(length + RECORD_SIZE);
+		record.writeInt(signature);
+		record.writeLong(position);
+		record.writeInt(length);
+		record.writeByteArray(tail, 0, length);
+
+		CRC32 checksum = new CRC32();
+		checksum.update(record.getRawData(), 0, record.getPosition());
+		record.writeInt((int) checksum.getValue());
+
+		ByteBuffer buffer = ByteBuffer.wrap(record.getRawData(), 0, record.getPosition());
+		while(buffer.hasRemaining())
+			size += channel.write(buffer, size);
+
+		channel.force(false);
+	}
+
+
+	/**
+	 * Closes the journal. The file is deleted unless a change is still in progress,
+	 * in which case it is left for the archive to be recovered from.
+	 * @param pending True if a change is still in progress.
+	 */
+	protected void close(boolean pending) throws IOException {
+
+		channel.close();
+		if(!pending)
+			Files.deleteIfExists(file.toPath());
+	}
+
+
+	/**
+	 * Puts the archive back into a valid state using the journal in the specified
+	 * file, if there is one, then deletes the journal. A journal that doesn't fit the
+	 * archive, such as one left behind by an archive that was since deleted, is
+	 * deleted without being used.
+	 * @param file The file holding the journal.
+	 * @param archive The archive the journal was kept for.
+	 * @return True if the archive was recovered.
+	 * @throws IOException If an error is encountered while writing the archive.
+	 */
+	protected static boolean recover(File file, BinaryRandomAccess archive) throws IOException {
+
+		if(!file.exists())
+			return false;
+
+		byte[] journal = Files.readAllBytes(file.toPath());
+		long length = archive.length();
+		BinaryReader reader = new BinaryReader(journal);
+
+		Record restore = null;
+		Record begin = readRecord(reader, journal.length, BEGIN_SIGNATURE);
+		if(begin != null) {
+
+			//Nothing is written past the old directory until the new one is recorded
+			Record commit = readRecord(reader, journal.length, COMMIT_SIGNATURE);
+			if(commit != null && length >= commit.position)
+				restore = commit;
+			else if(length >= begin.position + begin.length)
+				restore = begin;
+		}
+
+		if(restore != null) {
+
+			archive.write(restore.position, journal, restore.offset, restore.length);
+			archive.setLength(restore.position + restore.length);
+			archive.force();
+		}
+
+		Files.delete(file.toPath());
+		return restore != null;
+	}
+
+
+	/**
+	 * @return The next record, or null if it isn't there or wasn't written in full.
+	 */
+	private static Record readRecord(BinaryReader reader, int size, int signature) throws IOException {
+
+		int start = reader.getPosition();
+		if(size - start < RECORD_SIZE || reader.readInt() != signature)
+			return null;
+
+		long position = reader.readLong();
+		int length = reader.readInt();
+		if(position < 0 || length < 0 || length > size - start - RECORD_SIZE)
+			return null;
+
+		CRC32 checksum = new CRC32();
+		checksum.update(reader.getRawData(), start, RECORD_SIZE - 4 + length);
+		reader.skip(length);
+		if(reader.readInt() != (int) checksum.getValue())
+			return null;
+
+		return new Record(position, start + RECORD_SIZE - 4, length);
+	}
+
+
+	private static class Record{
+
+		private final long position;
+		private final int offset;
+		private final int length;
+
+
+		private Record(long position, int offset, int length) {
+
+			this.position = position;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
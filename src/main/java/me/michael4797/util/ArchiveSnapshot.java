@@ -0,0 +1,109 @@
+package me.michael4797.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A read only view of the entries of a {@link ZipArchive} as they were when
+ * {@link ZipArchive#snapshot()} was called. Reading from a snapshot doesn't take the
+ * archive's lock, so readers never hold up the thread writing to the archive, and
+ * the data of every entry in the snapshot stays in place until the snapshot is
+ * closed, so readers never see it half overwritten.
+ */
+public class ArchiveSnapshot implements Iterable<ArchiveEntry>, AutoCloseable{
+
+	private final ZipArchive archive;
+	private final BinaryRandomAccess source;
+	private final LinkedHashMap<String, ArchiveEntry> entries;
+	private final long epoch;
+	private volatile boolean closed;
+	
+	
+	protected ArchiveSnapshot(ZipArchive archive, BinaryRandomAccess source, LinkedHashMap<String, ArchiveEntry> entries, long epoch) {
+		
+		this.archive = archive;
+		this.source = source;
+		this.entries = entries;
+		this.epoch = epoch;
+	}
+	
+	
+	public int entryCount() {
+		
+		return entries.size();
+	}
+	
+	
+	public boolean containsEntry(String name) {
+		
+		return entries.containsKey(name);
+	}
+	
+	
+	public ArchiveEntry getEntry(String name) {
+		
+		return entries.get(name);
+	}
+	
+	
+	public byte[] extract(ArchiveEntry entry) throws IOException {
+		
+		checkEntry(entry);
+		return entry.extract(source);
+	}
+	
+	
+	/**
+	 * Opens a stream over an entry's uncompressed data. The stream relies on the
+	 * snapshot to keep the data in place, so it must be closed before the snapshot is.
+	 */
+	public EntryInputStream openStream(ArchiveEntry entry) throws IOException {
+		
+		checkEntry(entry);
+		entry.readLocalHeader(source);
+		return new EntryInputStream(entry, source, null, 0);
+	}
+	
+	
+	public byte[] getCompressedData(ArchiveEntry entry) throws IOException {
+		
+		checkEntry(entry);
+		return entry.getCompressedData(source);
+	}
+	
+	
+	/**
+	 * Only entries taken from the snapshot itself are guaranteed to still be in place.
+	 */
+	private void checkEntry(ArchiveEntry entry) throws IOException {
+		
+		if(closed)
+			throw new IllegalStateException("Snapshot is closed");
+		
+		if(entries.get(entry.name) != entry)
+			throw new IOException("Entry \"" + entry.name + "\" does not exist in this snapshot");
+	}
+
+
+	@Override
+	public Iterator<ArchiveEntry> iterator() {
+
+		return new ImmutableIterator<ArchiveEntry>(entries.values().iterator());
+	}
+	
+	
+	/**
+	 * Closes the snapshot, letting the archive reuse the space of entries that were
+	 * removed or replaced since it was taken, once no other snapshot can see them.
+	 */
+	@Override
+	public void close() {
+		
+		if(closed)
+			return;
+		
+		closed = true;
+		archive.releaseSnapshot(epoch);
+	}
+}
@@ -2,20 +2,46 @@ package me.michael4797.util;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class BinaryRandomAccess implements BinaryInput, BinaryOutput{
 
-	private final RandomAccessFile source;
+	//Windows overlap, so anything smaller than the overlap lies entirely within one window
+	private static final long WINDOW_SIZE = 1073741824;
+	private static final long WINDOW_OVERLAP = 67108864;
+	
+	private final FileChannel channel;
+	private MappedByteBuffer[] windows;
 	private final byte[] outBuffer;
+	private final ByteBuffer inBuffer;
+	private ByteBuffer copyBuffer;
 	private int index = 0;
 	private long position;
 	
 	
 	public BinaryRandomAccess(RandomAccessFile source) throws IOException {
 		
-		this.source = source;
-		this.position = source.getFilePointer();
+		this(source.getChannel());
+	}
+	
+	
+	/**
+	 * Reads and writes through the specified channel. Every read and write is made
+	 * at an explicit position, so the channel's own position is never relied on,
+	 * and any channel that supports positional reads and writes can be used, such as
+	 * a {@link MemoryChannel}.
+	 * @param channel The channel to read from and write to.
+	 * @throws IOException If an error is encountered while getting the channel's position.
+	 */
+	public BinaryRandomAccess(FileChannel channel) throws IOException {
+		
+		this.channel = channel;
+		this.position = channel.position();
 		outBuffer = new byte[8192];
+		inBuffer = ByteBuffer.allocate(1);
 	}
 	
 	
@@ -25,14 +51,13 @@ public class BinaryRandomAccess implements BinaryInput, BinaryOutput{
 		
 			flush();
 			this.position = position;
-			source.seek(position);
 		}
 	}
 	
 	
 	public long length() throws IOException{
 		
-		return source.length();
+		return channel.size();
 	}
 	
 	
@@ -53,53 +78,326 @@ public class BinaryRandomAccess implements BinaryInput, BinaryOutput{
 	}
 
 
+	@Override
+	public void writeByteArray(byte[] data) throws IOException {
+		
+		writeByteArray(data, 0, data.length);
+	}
+
+
+	@Override
+	public void writeByteArray(byte[] data, int offset, int length) throws IOException {
+		
+		//Arrays that wouldn't fit in the buffer anyways are written directly
+		if(length < outBuffer.length) {
+			
+			BinaryOutput.super.writeByteArray(data, offset, length);
+			return;
+		}
+		
+		flush();
+		write(position, data, offset, length);
+		position += length;
+	}
+
+
+	/**
+	 * Writes bytes to the underlying file at the specified position with a single
+	 * write, without moving the file pointer.
+	 * @param position The position to write the first byte at.
+	 * @param data The array holding the bytes to be written.
+	 * @param offset The index of the first byte in the array.
+	 * @param length The number of bytes to write.
+	 * @throws IOException If an error is encountered while writing.
+	 */
+	public void write(long position, byte[] data, int offset, int length) throws IOException {
+		
+		flush();
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+		while(buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+
 	@Override
 	public void close() throws IOException {
 		
 		flush();		
-		source.close();
+		channel.close();
 	}
 
 
 	@Override
 	public boolean hasMoreData() throws IOException {
 
-		return position < source.length();
+		return position < channel.size();
 	}
 
 
 	@Override
 	public byte readNext() throws IOException {
 		
+		if(windows != null) {
+			
+			int window = (int) (position / WINDOW_SIZE);
+			int offset = (int) (position % WINDOW_SIZE);
+			if(window >= windows.length || offset >= windows[window].limit())
+				throw new IOException("End of file");
+			
+			++position;
+			return windows[window].get(offset);
+		}
+		
 		flush();
+		inBuffer.clear();
+		if(channel.read(inBuffer, position) <= 0)
+			throw new IOException("End of file");
+		
 		++position;
-		return source.readByte();
+		return inBuffer.get(0);
 	}
 
 
 	@Override
 	public void readByteArray(byte[] data, int offset, int length) throws IOException {
 		
-		flush();
+		read(position, data, offset, length);
 		position += length;
-		source.read(data, offset, length);
+	}
+	
+	
+	/**
+	 * Maps the whole file into memory for reading, after which every read is served
+	 * from the mapping instead of the file. The file is mapped in windows of a
+	 * gigabyte, so files too large for a single mapping can still be mapped. Only
+	 * files that are not written to while mapped may be mapped.
+	 * @throws IOException If an error is encountered while mapping the file.
+	 */
+	public void map() throws IOException {
+		
+		flush();
+		long length = channel.size();
+		MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+		for(int i = 0; i < windows.length; ++i) {
+			
+			long start = i * WINDOW_SIZE;
+			windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE + WINDOW_OVERLAP, length - start));
+		}
+		
+		this.windows = windows;
+	}
+	
+	
+	/**
+	 * Gets a range of the mapped file without copying it.
+	 * @param position The position of the first byte.
+	 * @param length The number of bytes.
+	 * @return A read only buffer over the range, or null if the file isn't mapped or
+	 * the range doesn't lie within a single window.
+	 */
+	public ByteBuffer slice(long position, long length) {
+		
+		if(windows == null || position < 0 || length > WINDOW_OVERLAP)
+			return null;
+		
+		int window = (int) (position / WINDOW_SIZE);
+		int offset = (int) (position % WINDOW_SIZE);
+		if(window >= windows.length || offset + length > windows[window].capacity())
+			return null;
+		
+		ByteBuffer slice = windows[window].duplicate();
+		slice.position(offset);
+		slice.limit(offset + (int) length);
+		return slice.slice().asReadOnlyBuffer();
 	}
 
 
+	/**
+	 * Reads bytes from the underlying file at the specified position without moving
+	 * the file pointer. Positional reads share no state, so they can be made from
+	 * any number of threads at once as long as nothing is being written.
+	 * @param position The position of the first byte to read.
+	 * @param data The array to place the read bytes in.
+	 * @param offset The index in the array of the first byte.
+	 * @param length The number of bytes to read.
+	 * @throws IOException If an error is encountered while reading, or the end of
+	 * the file is reached first.
+	 */
+	public void read(long position, byte[] data, int offset, int length) throws IOException {
+		
+		if(windows != null) {
+			
+			while(length > 0) {
+				
+				int window = (int) (position / WINDOW_SIZE);
+				if(window >= windows.length)
+					throw new IOException("End of file");
+				
+				//Duplicates keep their own position, so threads reading the same window don't interfere
+				ByteBuffer buffer = windows[window].duplicate();
+				buffer.position((int) (position % WINDOW_SIZE));
+				int read = Math.min(length, buffer.remaining());
+				if(read == 0)
+					throw new IOException("End of file");
+				
+				buffer.get(data, offset, read);
+				position += read;
+				offset += read;
+				length -= read;
+			}
+			
+			return;
+		}
+		
+		flush();
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+		while(buffer.hasRemaining()) {
+			
+			int read = channel.read(buffer, position);
+			if(read < 0)
+				throw new IOException("End of file");
+			
+			position += read;
+		}
+	}
+	
+	
+	/**
+	 * Creates another instance over the same file, with a write buffer of its own.
+	 * Positional reads made through it never flush this instance's buffer, so it can
+	 * be read from while another thread writes through this one, as long as the data
+	 * being read was already flushed. Closing either instance closes the file.
+	 * @return A new instance over the same file.
+	 * @throws IOException If an error is encountered while getting the file pointer.
+	 */
+	public BinaryRandomAccess reader() throws IOException {
+		
+		return new BinaryRandomAccess(channel);
+	}
+	
+	
+	/**
+	 * Copies bytes from the underlying file directly to the specified channel. The
+	 * bytes are read from the specified position without moving the file pointer.
+	 * @param position The position of the first byte to be copied.
+	 * @param count The number of bytes to copy.
+	 * @param target The channel to write the bytes to.
+	 * @throws IOException If an error is encountered while copying.
+	 */
+	public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		
+		flush();
+		while(count > 0) {
+			
+			long transferred = channel.transferTo(position, count, target);
+			if(transferred <= 0)
+				throw new IOException("End of file");
+			
+			position += transferred;
+			count -= transferred;
+		}
+	}
+	
+	
+	/**
+	 * Copies bytes directly from another file to the current position of this one,
+	 * moving the file pointer past them.
+	 * @param from The file to copy the bytes from.
+	 * @param position The position of the first byte to be copied in the other file.
+	 * @param count The number of bytes to copy.
+	 * @throws IOException If an error is encountered while copying.
+	 */
+	public void transferFrom(BinaryRandomAccess from, long position, long count) throws IOException {
+		
+		flush();
+		
+		//The target of a transfer is written at the channel's own position
+		channel.position(this.position);
+		from.transferTo(position, count, channel);
+		this.position += count;
+	}
+	
+	
+	/**
+	 * Copies bytes from one position in the underlying file to another through a
+	 * small reusable buffer, so the memory used doesn't depend on the number of
+	 * bytes copied. The ranges may overlap. The file pointer is not moved.
+	 * @param from The position of the first byte to be copied.
+	 * @param to The position to copy the first byte to.
+	 * @param count The number of bytes to copy.
+	 * @throws IOException If an error is encountered while copying.
+	 */
+	public void copy(long from, long to, long count) throws IOException {
+		
+		if(from == to || count <= 0)
+			return;
+		
+		flush();
+		if(copyBuffer == null)
+			copyBuffer = ByteBuffer.allocateDirect(65536);
+		
+		//When copying forward over the source, copy from the end so nothing is overwritten before it's read
+		boolean backwards = to > from && to < from + count;
+		long copied = 0;
+		while(copied < count) {
+			
+			int length = (int) Math.min(copyBuffer.capacity(), count - copied);
+			long offset = backwards ? count - copied - length : copied;
+			
+			copyBuffer.clear();
+			copyBuffer.limit(length);
+			while(copyBuffer.hasRemaining())
+				if(channel.read(copyBuffer, from + offset + copyBuffer.position()) < 0)
+					throw new IOException("End of file");
+			
+			copyBuffer.flip();
+			while(copyBuffer.hasRemaining())
+				channel.write(copyBuffer, to + offset + copyBuffer.position());
+			
+			copied += length;
+		}
+	}
+	
+	
 	public void setLength(long newLength) throws IOException {
 		
-		if(newLength < position)
-			flush();
+		flush();
+		long length = channel.size();
+		if(newLength < length)
+			channel.truncate(newLength);
+		else if(newLength > length)
+			write(newLength - 1, new byte[1], 0, 1);
+	}
+
+
+	/**
+	 * Writes any buffered bytes to the underlying file and waits for everything
+	 * written so far to reach the disk.
+	 * @throws IOException If an error is encountered while writing.
+	 */
+	public void force() throws IOException {
 		
-		source.setLength(newLength);
+		flush();
+		channel.force(false);
 	}
 
 
-	public void flush() throws IOException {
+	/**
+	 * Writes any buffered bytes to the underlying file. This is synchronized because
+	 * concurrent readers flush before their positional reads, and bytes left in the
+	 * buffer by the last write must only be written once.
+	 * @throws IOException If an error is encountered while writing.
+	 */
+	public synchronized void flush() throws IOException {
 
 		if(index > 0) {
 			
-			source.write(outBuffer, 0, index);
+			//The buffered bytes end at the current position
+			ByteBuffer buffer = ByteBuffer.wrap(outBuffer, 0, index);
+			long position = this.position - index;
+			while(buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			
 			index = 0;
 		}
 	}
@@ -0,0 +1,79 @@
+package me.michael4797.util;
+
+/**
+ * Decides where entries are stored within a {@link ZipArchive}. The allocator only
+ * manages space, it never touches the archive itself. Everything past the last
+ * allocated block is free to be used by the central directory.
+ */
+public interface BlockAllocator {
+
+	/**
+	 * Allocates a block large enough to hold the specified number of bytes.
+	 * @param size The number of bytes that will be stored in the block.
+	 * @return The position of the allocated block.
+	 */
+	long getBlock(long size);
+	
+	/**
+	 * Claims the block that holds the specified number of bytes starting at the
+	 * specified position. This is used to keep existing entries where they are
+	 * when an archive is opened.
+	 * @param size The number of bytes stored at the position.
+	 * @param position The position of the block to claim.
+	 * @return True if the block was claimed, false if the allocator cannot place a
+	 * block of that size at that position, or any of that space is already in use.
+	 */
+	boolean getBlock(long size, long position);
+	
+	/**
+	 * Allocates the first block at or after the specified position that is large
+	 * enough to hold the specified number of bytes.
+	 * @param size The number of bytes that will be stored in the block.
+	 * @param after The lowest position the block may start at.
+	 * @return The position of the allocated block.
+	 */
+	long getBlockAfter(long size, long after);
+	
+	/**
+	 * Allocates a block as close to the end of the space as possible, growing the
+	 * space if no free block near the end is large enough. This keeps blocks that
+	 * are replaced often next to each other, and away from the long lived blocks at
+	 * the start of the space.
+	 * @param size The number of bytes that will be stored in the block.
+	 * @return The position of the allocated block.
+	 */
+	long getHighBlock(long size);
+	
+	/**
+	 * Releases a block previously returned by one of the getBlock methods.
+	 * @param position The position of the block.
+	 * @param size The number of bytes the block was allocated for.
+	 */
+	void freeBlock(long position, long size);
+	
+	/**
+	 * Changes the number of bytes held by an allocated block without moving it.
+	 * Shrinking always succeeds and releases any space the block no longer needs.
+	 * Growing only succeeds if the space directly after the block is free.
+	 * @param position The position of the block.
+	 * @param oldSize The number of bytes the block was allocated for.
+	 * @param newSize The number of bytes the block needs to hold.
+	 * @return True if the block now holds the new size, false if it has to be
+	 * moved. The block is left unchanged when false is returned.
+	 */
+	boolean resize(long position, long oldSize, long newSize);
+	
+	/**
+	 * Releases the free space at the end of the allocator, so that the space it
+	 * manages follows the blocks that are still in use rather than the largest
+	 * size it has ever reached.
+	 * @return The new end of the space managed by the allocator.
+	 */
+	long trim();
+	
+	/**
+	 * @param size The number of bytes that will be stored in a block.
+	 * @return The number of bytes taken up by a block allocated for that many bytes.
+	 */
+	long getBlockSize(long size);
+}
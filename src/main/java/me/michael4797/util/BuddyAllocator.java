@@ -0,0 +1,384 @@
+package me.michael4797.util;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+/**
+ * The default {@link BlockAllocator}. Every block is a power of two of at least 32
+ * bytes and is aligned to its own size, so freed blocks merge back with their
+ * buddies and an updated entry is likely to fit back in the block it came from.
+ */
+public class BuddyAllocator implements BlockAllocator{
+
+	private static final byte MINIMUM_BLOCK_SIZE = 5;
+	
+	private final ArrayList<StorageList> storage = new ArrayList<>();
+	
+	private long totalSize;
+	
+	
+	/**
+	 * Grows the allocator until a free block of at least the specified order exists.
+	 * The archive space is always a power of two in size, so it is grown by appending
+	 * a single block the size of the current space, which keeps every block aligned
+	 * to its own size.
+	 * @param b The order index of the block that is needed.
+	 * @return The order index of the largest block that was added.
+	 */
+	private byte increaseStorage(byte b) {
+		
+		if(totalSize == 0) {
+			
+			while(storage.size() <= b)
+				storage.add(new StorageList());
+			
+			long size = 1L << (b + MINIMUM_BLOCK_SIZE);
+			storage.get(b).add(0);
+			storage.get(b).add(size);
+			totalSize = size << 1;
+			return b;
+		}
+		
+		byte i;
+		do {
+			
+			i = (byte) (Long.numberOfTrailingZeros(totalSize) - MINIMUM_BLOCK_SIZE);
+			while(storage.size() <= i)
+				storage.add(new StorageList());
+			
+			storage.get(i).add(totalSize);
+			totalSize <<= 1;
+		} while(i < b);
+		
+		return i;
+	}
+	
+	
+	@Override
+	public long getBlock(long size) {
+		
+		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
+		
+		if(b >= storage.size())
+			increaseStorage(b);
+		
+		StorageList list = storage.get(b);
+		if(list.isEmpty())
+			splitBlock(b);
+		
+		return list.remove();
+	}
+	
+	
+	@Override
+	public boolean getBlock(long size, long position) {
+		
+		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
+		long blockSize = 1L << (b + MINIMUM_BLOCK_SIZE);
+		if((position & (blockSize - 1)) != 0)
+			return false;
+		
+		if(totalSize == 0)
+			increaseStorage(b);
+		
+		while(position + blockSize > totalSize)
+			increaseStorage((byte) 0);
+		
+		while(b >= storage.size())
+			storage.add(new StorageList());
+		
+		if(storage.get(b).remove(position))
+			return true;
+		
+		return splitBlock(b, position);
+	}
+	
+	
+	@Override
+	public long getBlockAfter(long size, long after) {
+		
+		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
+		
+		while(totalSize < after)
+			increaseStorage((byte) 0);
+		
+		if(b >= storage.size())
+			increaseStorage(b);
+		
+		StorageList list = storage.get(b);
+		long position = list.removeAfter(after);
+		if(position >= 0)
+			return position;
+		
+		splitBlockAfter(b, after);
+		return list.removeAfter(after);
+	}
+	
+	
+	@Override
+	public long getHighBlock(long size) {
+		
+		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
+		
+		if(b >= storage.size())
+			increaseStorage(b);
+		
+		//Take the highest free block that fits, whatever its order, so hot blocks never land low in the space
+		byte i = -1;
+		long position = -1;
+		for(byte order = b; order < storage.size(); ++order) {
+			
+			StorageList list = storage.get(order);
+			if(!list.isEmpty() && list.last() > position) {
+				
+				i = order;
+				position = list.last();
+			}
+		}
+		
+		if(i < 0) {
+			
+			i = increaseStorage(b);
+			position = storage.get(i).last();
+		}
+		
+		//Split the block keeping the upper half each time, so the lower halves stay free
+		storage.get(i).remove(position);
+		while(i > b) {
+			
+			--i;
+			storage.get(i).add(position);
+			position |= 1L << (i + MINIMUM_BLOCK_SIZE);
+		}
+		
+		return position;
+	}
+	
+	
+	@Override
+	public void freeBlock(long position, long size) {
+				
+		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
+		while(b >= storage.size())
+			storage.add(new StorageList());
+		
+		while(true) {
+			
+			StorageList list = storage.get(b);
+			long buddy = position ^ (1L << (b + MINIMUM_BLOCK_SIZE));
+			
+			if(!list.remove(buddy)) {
+				
+				list.add(position);
+				return;
+			}
+			
+			if(buddy < position)
+				position = buddy;
+			
+			++b;
+			
+			if(b >= storage.size())
+				storage.add(new StorageList());
+		}
+	}
+	
+	
+	@Override
+	public boolean resize(long position, long oldSize, long newSize) {
+		
+		byte oldOrder = (byte) (getSize(oldSize) - MINIMUM_BLOCK_SIZE);
+		byte newOrder = (byte) (getSize(newSize) - MINIMUM_BLOCK_SIZE);
+		
+		if(newOrder <= oldOrder) {
+			
+			//Release the upper half until the block is the size it needs to be
+			for(byte b = (byte) (oldOrder - 1); b >= newOrder; --b)
+				freeBlock(position + (1L << (b + MINIMUM_BLOCK_SIZE)), 1L << (b + MINIMUM_BLOCK_SIZE));
+			
+			return true;
+		}
+		
+		//The block can only grow if it is the lower buddy at every order, and every buddy is free
+		if((position & ((1L << (newOrder + MINIMUM_BLOCK_SIZE)) - 1)) != 0 || newOrder > storage.size())
+			return false;
+		
+		for(byte b = oldOrder; b < newOrder; ++b)
+			if(!storage.get(b).hasBlock(position | (1L << (b + MINIMUM_BLOCK_SIZE))))
+				return false;
+		
+		for(byte b = oldOrder; b < newOrder; ++b)
+			storage.get(b).remove(position | (1L << (b + MINIMUM_BLOCK_SIZE)));
+		
+		return true;
+	}
+	
+	
+	@Override
+	public long getBlockSize(long size) {
+		
+		return 1L << getSize(size);
+	}
+	
+	
+	@Override
+	public long trim() {
+		
+		while(totalSize > 0) {
+			
+			byte top = (byte) (Long.numberOfTrailingZeros(totalSize) - MINIMUM_BLOCK_SIZE);
+			if(top < storage.size() && storage.get(top).remove(0)) {
+				
+				storage.clear();
+				totalSize = 0;
+				break;
+			}
+			
+			byte b = (byte) (top - 1);
+			if(b < 0 || b >= storage.size() || !storage.get(b).remove(totalSize >>> 1))
+				break;
+			
+			totalSize >>>= 1;
+		}
+		
+		return totalSize;
+	}
+	
+	
+	private void splitBlock(byte targetSize) {
+		
+		byte i = (byte) (targetSize + 1);
+				
+		while(i < storage.size() && storage.get(i).isEmpty())
+			++i;
+		
+		if(i >= storage.size()) 
+			i = increaseStorage(targetSize);
+		
+		while(i > targetSize) {
+
+			long block = storage.get(i--).remove();
+			storage.get(i).add(block);
+			storage.get(i).add(block | (1L << (i + MINIMUM_BLOCK_SIZE)));
+		}
+	}
+	
+	
+	private boolean splitBlock(byte targetSize, long position) {
+		
+		byte i = (byte) (targetSize + 1);
+
+		byte bit = (byte) (i + MINIMUM_BLOCK_SIZE);
+		while(i < storage.size() && !storage.get(i).hasBlock(position & ~((1L << bit) - 1))) {
+			++i;
+			++bit;
+		}
+		
+		if(i >= storage.size())
+			return false;
+		
+		while(i > targetSize) {
+
+			long block = position & ~((1L << bit) - 1);
+			storage.get(i--).remove(block);
+			bit--;
+			storage.get(i).add(block);
+			storage.get(i).add(block | (1L << bit));
+		}
+		
+		return storage.get(targetSize).remove(position);
+	}
+	
+	
+	private void splitBlockAfter(byte targetSize, long after) {
+		
+		byte i = (byte) (targetSize + 1);
+				
+		while(i < storage.size() && !storage.get(i).hasAfter(after))
+			++i;
+		
+		if(i >= storage.size()) 
+			i = increaseStorage(targetSize);
+		
+		while(i > targetSize) {
+
+			long block = storage.get(i--).removeAfter(after);
+			storage.get(i).add(block);
+			storage.get(i).add(block | (1L << (i + MINIMUM_BLOCK_SIZE)));
+		}
+	}
+	
+	
+	private static byte getSize(long totalCompressedSize2) {
+		
+		byte b = MINIMUM_BLOCK_SIZE;
+		while((1L << b) < totalCompressedSize2)
+			++b;
+		
+		return b;
+	}
+	
+	
+	/**
+	 * The free blocks of a single order. Blocks are indexed by position so that
+	 * finding the lowest block, a specific block (such as a buddy), or the first
+	 * block after a position are all logarithmic rather than a scan of the list.
+	 */
+	private static class StorageList{
+		
+		private final TreeSet<Long> blocks = new TreeSet<>();
+		
+		
+		private void add(long position) {
+			
+			blocks.add(position);
+		}
+		
+		
+		private boolean isEmpty() {
+			
+			return blocks.isEmpty();
+		}
+		
+		
+		private long remove() {
+			
+			return blocks.pollFirst();
+		}
+		
+		
+		private long last() {
+			
+			return blocks.last();
+		}
+		
+		
+		private boolean remove(long position) {
+			
+			return blocks.remove(position);
+		}
+		
+		
+		private long removeAfter(long after) {
+			
+			Long position = blocks.ceiling(after);
+			if(position == null)
+				return -1;
+			
+			blocks.remove(position);
+			return position;
+		}
+		
+		
+		private boolean hasAfter(long after) {
+			
+			return blocks.ceiling(after) != null;
+		}
+		
+		
+		private boolean hasBlock(long position) {
+			
+			return blocks.contains(position);
+		}
+	}
+}
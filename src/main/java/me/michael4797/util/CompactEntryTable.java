@@ -0,0 +1,495 @@
+package me.michael4797.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An {@link EntryTable} for archives with a very large number of entries. Instead of
+ * an object for each entry, the names are kept in a single byte array and everything
+ * else in primitive arrays indexed by slot, with an open addressing hash index over
+ * the names. This takes well under a hundred bytes per entry plus its name, so very
+ * large archives can be opened with a small heap. Once an entry's central directory
+ * record has been encoded it is kept in another byte array the same way, so that
+ * rewriting the directory doesn't encode every record again.
+ * <p>
+ * The entries returned by the table are views created on demand. Views of the same
+ * entry are not the same object, but {@link #contains(ArchiveEntry)} treats them as
+ * the same entry, and changes made through any of them are stored in the table.
+ */
+public class CompactEntryTable implements EntryTable{
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int count;
+	private int usedSlots;
+	private int freeSlot = -1;
+	private int head = -1;
+	private int tail = -1;
+
+	private int[] next = new int[INITIAL_CAPACITY];
+	private int[] previous = new int[INITIAL_CAPACITY];
+	private int[] stamps = new int[INITIAL_CAPACITY];
+
+	private long[] positions = new long[INITIAL_CAPACITY];
+	private long[] directoryOffsets = new long[INITIAL_CAPACITY];
+	private long[] compressedSizes = new long[INITIAL_CAPACITY];
+	private long[] uncompressedSizes = new long[INITIAL_CAPACITY];
+	private int[] crcs = new int[INITIAL_CAPACITY];
+	private int[] headerSizes = new int[INITIAL_CAPACITY];
+	private short[] compressionTypes = new short[INITIAL_CAPACITY];
+	private short[] lastModifiedTimes = new short[INITIAL_CAPACITY];
+	private short[] lastModifiedDates = new short[INITIAL_CAPACITY];
+
+	private int[] nameOffsets = new int[INITIAL_CAPACITY];
+	private short[] nameLengths = new short[INITIAL_CAPACITY];
+	private byte[] names = new byte[INITIAL_CAPACITY * 16];
+	private int namesSize;
+	private int unusedNameBytes;
+
+	//A record length of 0 means the entry's record hasn't been kept
+	private int[] recordOffsets = new int[INITIAL_CAPACITY];
+	private int[] recordLengths = new int[INITIAL_CAPACITY];
+	private byte[] records = new byte[INITIAL_CAPACITY * 64];
+	private int recordsSize;
+	private int unusedRecordBytes;
+
+	//Holds slot + 1 for each entry, 0 for an empty bucket and -1 for a removed one
+	private int[] index = new int[INITIAL_CAPACITY * 2];
+	private int usedBuckets;
+
+
+	@Override
+	public int size() {
+
+		return count;
+	}
+
+
+	@Override
+	public boolean containsName(String name) {
+
+		return findBucket(name) >= 0;
+	}
+
+
+	@Override
+	public ArchiveEntry get(String name) {
+
+		int bucket = findBucket(name);
+		if(bucket < 0)
+			return null;
+
+		return view(index[bucket] - 1, name);
+	}
+
+
+	@Override
+	public boolean contains(ArchiveEntry entry) {
+
+		if(entry.getTable() != this)
+			return false;
+
+		int slot = entry.getTableSlot();
+		return slot < usedSlots && stamps[slot] == entry.getTableStamp();
+	}
+
+
+	@Override
+	public void put(ArchiveEntry entry) {
+
+		int bucket = findBucket(entry.name);
+		int slot;
+		if(bucket >= 0) {
+
+			slot = index[bucket] - 1;
+		}
+		else {
+
+			slot = allocateSlot();
+			storeName(slot, entry.name);
+			link(slot);
+			insertBucket(slot, entry.name);
+			++count;
+		}
+
+		stamps[slot] += 1;
+		dropRecord(slot);
+		compressionTypes[slot] = entry.compressionType;
+		lastModifiedTimes[slot] = entry.lastModifiedTime;
+		lastModifiedDates[slot] = entry.lastModifiedDate;
+		crcs[slot] = entry.crc32;
+		compressedSizes[slot] = entry.compressedSize;
+		uncompressedSizes[slot] = entry.uncompressedSize;
+		store(slot, entry);
+
+		entry.bind(this, slot, stamps[slot]);
+	}
+
+
+	@Override
+	public boolean remove(ArchiveEntry entry) {
+
+		if(!contains(entry))
+			return false;
+
+		int slot = entry.getTableSlot();
+		index[findBucket(entry.name)] = -1;
+		unlink(slot);
+
+		//Moving the stamp on makes every view of the entry stale
+		stamps[slot] += 1;
+		dropRecord(slot);
+		next[slot] = freeSlot;
+		freeSlot = slot;
+		unusedNameBytes += nameLengths[slot]&65535;
+		--count;
+
+		if(unusedNameBytes > 4096 && unusedNameBytes > namesSize / 2)
+			packNames();
+
+		return true;
+	}
+
+
+	@Override
+	public void update(ArchiveEntry entry) {
+
+		if(contains(entry))
+			store(entry.getTableSlot(), entry);
+	}
+
+
+	/**
+	 * Only the header size is written, so readers never write the positions and
+	 * offsets that other readers use to find entries, and a long is never written
+	 * where another thread may be reading it. The slot can't be reused while readers
+	 * hold the archive's read lock, so the stamp check stays valid until the write.
+	 */
+	@Override
+	public void cacheHeaderSize(ArchiveEntry entry) {
+
+		if(contains(entry))
+			headerSizes[entry.getTableSlot()] = (int) entry.getHeaderSize();
+	}
+
+
+	@Override
+	public byte[] getDirectoryRecord(ArchiveEntry entry) {
+
+		if(!contains(entry))
+			return null;
+
+		int slot = entry.getTableSlot();
+		int length = recordLengths[slot];
+		if(length == 0)
+			return null;
+
+		int offset = recordOffsets[slot];
+		return Arrays.copyOfRange(records, offset, offset + length);
+	}
+
+
+	@Override
+	public void cacheDirectoryRecord(ArchiveEntry entry, byte[] record) {
+
+		if(!contains(entry))
+			return;
+
+		//A view left behind by a move describes the old position
+		int slot = entry.getTableSlot();
+		if(recordLengths[slot] != 0 || positions[slot] != entry.getHeaderPosition())
+			return;
+
+		if(recordsSize + record.length > records.length)
+			records = Arrays.copyOf(records, Math.max(records.length << 1, recordsSize + record.length));
+
+		System.arraycopy(record, 0, records, recordsSize, record.length);
+		recordOffsets[slot] = recordsSize;
+		recordLengths[slot] = record.length;
+		recordsSize += record.length;
+	}
+
+
+	@Override
+	public Iterator<ArchiveEntry> iterator() {
+
+		return new Iterator<ArchiveEntry>() {
+
+			private int slot = head;
+
+			@Override
+			public boolean hasNext() {
+
+				return slot >= 0;
+			}
+
+			@Override
+			public ArchiveEntry next() {
+
+				if(slot < 0)
+					throw new NoSuchElementException();
+
+				//Move on before returning, so the entry can be removed while iterating
+				int current = slot;
+				slot = CompactEntryTable.this.next[current];
+				return view(current, getName(current));
+			}
+		};
+	}
+
+
+	private void store(int slot, ArchiveEntry entry) {
+
+		//The record holds the entry's position, so it no longer applies once the entry moves
+		if(positions[slot] != entry.getHeaderPosition())
+			dropRecord(slot);
+
+		positions[slot] = entry.getHeaderPosition();
+		directoryOffsets[slot] = entry.getDirectoryOffset();
+		headerSizes[slot] = (int) entry.getHeaderSize();
+	}
+
+
+	private ArchiveEntry view(int slot, String name) {
+
+		try {
+
+			ArchiveEntry entry = new ArchiveEntry(compressionTypes[slot], lastModifiedTimes[slot], lastModifiedDates[slot], crcs[slot], compressedSizes[slot], uncompressedSizes[slot], name, positions[slot], directoryOffsets[slot]);
+			entry.setHeaderSize(headerSizes[slot]);
+			entry.bind(this, slot, stamps[slot]);
+			return entry;
+		}catch(IOException e) {
+
+			throw new IllegalStateException(e); //Creating an entry from existing values doesn't touch the file
+		}
+	}
+
+
+	private String getName(int slot) {
+
+		int offset = nameOffsets[slot];
+		int length = nameLengths[slot]&65535;
+		char[] name = new char[length];
+		for(int i = 0; i < length; ++i)
+			name[i] = (char) (names[offset + i]&255);
+
+		return new String(name);
+	}
+
+
+	private static int hash(String name) {
+
+		int hash = 0;
+		for(int i = 0; i < name.length(); ++i)
+			hash = 31*hash + (name.charAt(i)&255);
+
+		return hash ^ (hash >>> 16);
+	}
+
+
+	private boolean matches(int slot, String name) {
+
+		int length = nameLengths[slot]&65535;
+		if(length != name.length())
+			return false;
+
+		int offset = nameOffsets[slot];
+		for(int i = 0; i < length; ++i)
+			if(names[offset + i] != (byte) (name.charAt(i)&255))
+				return false;
+
+		return true;
+	}
+
+
+	/**
+	 * @return The bucket holding the entry with the specified name, or -1 if there
+	 * is no such entry.
+	 */
+	private int findBucket(String name) {
+
+		int mask = index.length - 1;
+		for(int bucket = hash(name) & mask;; bucket = (bucket + 1) & mask) {
+
+			int value = index[bucket];
+			if(value == 0)
+				return -1;
+
+			if(value > 0 && matches(value - 1, name))
+				return bucket;
+		}
+	}
+
+
+	private void insertBucket(int slot, String name) {
+
+		if((usedBuckets + 1) * 2 > index.length)
+			rehash();
+
+		int mask = index.length - 1;
+		int bucket = hash(name) & mask;
+		while(index[bucket] != 0)
+			bucket = (bucket + 1) & mask;
+
+		index[bucket] = slot + 1;
+		++usedBuckets;
+	}
+
+
+	/**
+	 * Rebuilds the hash index without the buckets of removed entries, growing it if
+	 * the entries still in the table fill more than a quarter of it.
+	 */
+	private void rehash() {
+
+		int capacity = index.length;
+		while((count + 1) * 4 > capacity)
+			capacity <<= 1;
+
+		index = new int[capacity];
+		usedBuckets = 0;
+
+		int mask = capacity - 1;
+		for(int slot = head; slot >= 0; slot = next[slot]) {
+
+			int bucket = hash(getName(slot)) & mask;
+			while(index[bucket] != 0)
+				bucket = (bucket + 1) & mask;
+
+			index[bucket] = slot + 1;
+			++usedBuckets;
+		}
+	}
+
+
+	private int allocateSlot() {
+
+		if(freeSlot >= 0) {
+
+			int slot = freeSlot;
+			freeSlot = next[slot];
+			return slot;
+		}
+
+		if(usedSlots == positions.length) {
+
+			int capacity = positions.length << 1;
+			next = Arrays.copyOf(next, capacity);
+			previous = Arrays.copyOf(previous, capacity);
+			stamps = Arrays.copyOf(stamps, capacity);
+			positions = Arrays.copyOf(positions, capacity);
+			directoryOffsets = Arrays.copyOf(directoryOffsets, capacity);
+			compressedSizes = Arrays.copyOf(compressedSizes, capacity);
+			uncompressedSizes = Arrays.copyOf(uncompressedSizes, capacity);
+			crcs = Arrays.copyOf(crcs, capacity);
+			headerSizes = Arrays.copyOf(headerSizes, capacity);
+			compressionTypes = Arrays.copyOf(compressionTypes, capacity);
+			lastModifiedTimes = Arrays.copyOf(lastModifiedTimes, capacity);
+			lastModifiedDates = Arrays.copyOf(lastModifiedDates, capacity);
+			nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+			nameLengths = Arrays.copyOf(nameLengths, capacity);
+			recordOffsets = Arrays.copyOf(recordOffsets, capacity);
+			recordLengths = Arrays.copyOf(recordLengths, capacity);
+		}
+
+		return usedSlots++;
+	}
+
+
+	private void storeName(int slot, String name) {
+
+		if(namesSize + name.length() > names.length)
+			names = Arrays.copyOf(names, Math.max(names.length << 1, namesSize + name.length()));
+
+		nameOffsets[slot] = namesSize;
+		nameLengths[slot] = (short) name.length();
+		for(int i = 0; i < name.length(); ++i)
+			names[namesSize++] = (byte) (name.charAt(i)&255);
+	}
+
+
+	/**
+	 * Drops the names of removed entries from the name array.
+	 */
+	private void packNames() {
+
+		byte[] packed = new byte[Math.max(INITIAL_CAPACITY * 16, namesSize - unusedNameBytes)];
+		int size = 0;
+		for(int slot = head; slot >= 0; slot = next[slot]) {
+
+			int length = nameLengths[slot]&65535;
+			System.arraycopy(names, nameOffsets[slot], packed, size, length);
+			nameOffsets[slot] = size;
+			size += length;
+		}
+
+		names = packed;
+		namesSize = size;
+		unusedNameBytes = 0;
+	}
+
+
+	/**
+	 * Forgets the record kept for a slot.
+	 */
+	private void dropRecord(int slot) {
+
+		if(recordLengths[slot] == 0)
+			return;
+
+		unusedRecordBytes += recordLengths[slot];
+		recordLengths[slot] = 0;
+		if(unusedRecordBytes > 4096 && unusedRecordBytes > recordsSize / 2)
+			packRecords();
+	}
+
+
+	/**
+	 * Drops the records that are no longer kept from the record array.
+	 */
+	private void packRecords() {
+
+		byte[] packed = new byte[Math.max(INITIAL_CAPACITY * 64, recordsSize - unusedRecordBytes)];
+		int size = 0;
+		for(int current = head; current >= 0; current = next[current]) {
+
+			int length = recordLengths[current];
+			System.arraycopy(records, recordOffsets[current], packed, size, length);
+			recordOffsets[current] = size;
+			size += length;
+		}
+
+		records = packed;
+		recordsSize = size;
+		unusedRecordBytes = 0;
+	}
+
+
+	private void link(int slot) {
+
+		previous[slot] = tail;
+		next[slot] = -1;
+		if(tail >= 0)
+			next[tail] = slot;
+		else
+			head = slot;
+
+		tail = slot;
+	}
+
+
+	private void unlink(int slot) {
+
+		if(previous[slot] >= 0)
+			next[previous[slot]] = next[slot];
+		else
+			head = next[slot];
+
+		if(next[slot] >= 0)
+			previous[next[slot]] = previous[slot];
+		else
+			tail = previous[slot];
+	}
+}
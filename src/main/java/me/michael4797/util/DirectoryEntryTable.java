@@ -0,0 +1,314 @@
+package me.michael4797.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The {@link EntryTable} used by read only archives. Rather than decoding every
+ * listing in the central directory when the archive is opened, the table keeps the
+ * central directory as it was read along with the offset of each listing and a hash
+ * index over the names. A listing is only decoded into an {@link ArchiveEntry} when
+ * it is looked up or reached while iterating, so opening an archive to read a single
+ * entry doesn't cost an object for every entry in it. When the archive is memory
+ * mapped, the table reads the central directory straight from the mapping.
+ */
+class DirectoryEntryTable implements EntryTable{
+
+	private static final int LISTING_SIZE = 46;
+
+	private ByteBuffer directory = ByteBuffer.allocate(0);
+	private int[] listings = new int[0];
+	private int[] hashes = new int[0];
+	private int count;
+
+	//Holds the index of each listing + 1, and 0 for an empty bucket
+	private int[] index = new int[1];
+
+
+	/**
+	 * Indexes the listings of the specified central directory. Only the fixed size
+	 * part of each listing is read, the names are hashed as they are stored. Where
+	 * more than one listing has the same name the first one is kept, the same as
+	 * when the central directory is decoded up front.
+	 * @param directory The central directory, from its first byte to its limit. Only
+	 * absolute reads are made from it, so it may be a slice of a mapped file shared by
+	 * any number of threads.
+	 * @param entries The number of listings in the central directory.
+	 * @throws IOException If the central directory is corrupt.
+	 */
+	protected void load(ByteBuffer directory, int entries) throws IOException {
+
+		this.directory = directory;
+		listings = new int[entries];
+		hashes = new int[entries];
+		count = 0;
+
+		int capacity = 2;
+		while(capacity < entries * 2)
+			capacity <<= 1;
+
+		index = new int[capacity];
+
+		int offset = 0;
+		for(int i = 0; i < entries; ++i) {
+
+			if(offset + LISTING_SIZE > directory.limit() || readInt(offset) != ZipArchive.CD_SIGNATURE)
+				throw new IOException("Corrupt zip archive");
+
+			int next = offset + LISTING_SIZE + readShort(offset + 28) + readShort(offset + 30) + readShort(offset + 32);
+			if(next > directory.limit())
+				throw new IOException("Corrupt zip archive");
+
+			int hash = hash(offset);
+			int bucket = findBucket(offset, hash);
+			if(index[bucket] == 0) {
+
+				index[bucket] = count + 1;
+				listings[count] = offset;
+				hashes[count++] = hash;
+			}
+
+			offset = next;
+		}
+
+		if(offset != directory.limit())
+			throw new IOException("Corrupt zip archive");
+	}
+
+
+	@Override
+	public int size() {
+
+		return count;
+	}
+
+
+	@Override
+	public boolean containsName(String name) {
+
+		return findBucket(name) >= 0;
+	}
+
+
+	@Override
+	public ArchiveEntry get(String name) {
+
+		int bucket = findBucket(name);
+		if(bucket < 0)
+			return null;
+
+		return decode(index[bucket] - 1);
+	}
+
+
+	@Override
+	public boolean contains(ArchiveEntry entry) {
+
+		return entry.getTable() == this;
+	}
+
+
+	@Override
+	public void put(ArchiveEntry entry) {
+
+		throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+	}
+
+
+	@Override
+	public boolean remove(ArchiveEntry entry) {
+
+		throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+	}
+
+
+	@Override
+	public void update(ArchiveEntry entry) {}
+
+
+	@Override
+	public void cacheHeaderSize(ArchiveEntry entry) {}
+
+
+	@Override
+	public byte[] getDirectoryRecord(ArchiveEntry entry) {
+
+		return null;
+	}
+
+
+	@Override
+	public void cacheDirectoryRecord(ArchiveEntry entry, byte[] record) {}
+
+
+	@Override
+	public Iterator<ArchiveEntry> iterator() {
+
+		return new Iterator<ArchiveEntry>() {
+
+			private int listing;
+
+			@Override
+			public boolean hasNext() {
+
+				return listing < count;
+			}
+
+			@Override
+			public ArchiveEntry next() {
+
+				if(listing >= count)
+					throw new NoSuchElementException();
+
+				return decode(listing++);
+			}
+		};
+	}
+
+
+	/**
+	 * Decodes a listing from a copy of its own bytes, so the central directory itself
+	 * is never copied.
+	 */
+	private ArchiveEntry decode(int listing) {
+
+		int offset = listings[listing];
+		byte[] record = new byte[LISTING_SIZE + readShort(offset + 28) + readShort(offset + 30) + readShort(offset + 32)];
+		ByteBuffer buffer = directory.duplicate();
+		buffer.position(offset);
+		buffer.get(record);
+
+		try {
+
+			ArchiveEntry entry = ZipArchive.readDirectoryListing(new BinaryReader(record), offset);
+			entry.bind(this, listing, 0);
+			return entry;
+		}catch(IOException e) {
+
+			throw new IllegalStateException(e); //Every listing was checked when the table was loaded
+		}
+	}
+
+
+	private int readShort(int offset) {
+
+		return (directory.get(offset)&255) + ((directory.get(offset + 1)&255) << 8);
+	}
+
+
+	private int readInt(int offset) {
+
+		return readShort(offset) + (readShort(offset + 2) << 16);
+	}
+
+
+	/**
+	 * @return The length of the name of the listing at the specified offset. Names
+	 * end at the first null character, if there is one.
+	 */
+	private int getNameLength(int offset) {
+
+		int start = offset + LISTING_SIZE;
+		int length = readShort(offset + 28);
+		for(int i = 0; i < length; ++i)
+			if(directory.get(start + i) == 0)
+				return i;
+
+		return length;
+	}
+
+
+	private int hash(int offset) {
+
+		int start = offset + LISTING_SIZE;
+		int length = getNameLength(offset);
+		int hash = 0;
+		for(int i = 0; i < length; ++i)
+			hash = 31*hash + (directory.get(start + i)&255);
+
+		return spread(hash);
+	}
+
+
+	/**
+	 * @return The bucket holding the listing with the same name as the listing at the
+	 * specified offset, or the empty bucket it belongs in if there is no such listing.
+	 */
+	private int findBucket(int offset, int hash) {
+
+		int start = offset + LISTING_SIZE;
+		int length = getNameLength(offset);
+		int mask = index.length - 1;
+		for(int bucket = hash & mask;; bucket = (bucket + 1) & mask) {
+
+			int value = index[bucket];
+			if(value == 0)
+				return bucket;
+
+			if(hashes[value - 1] != hash)
+				continue;
+
+			int other = listings[value - 1];
+			if(getNameLength(other) != length)
+				continue;
+
+			int otherStart = other + LISTING_SIZE;
+			int i = 0;
+			while(i < length && directory.get(start + i) == directory.get(otherStart + i))
+				++i;
+
+			if(i == length)
+				return bucket;
+		}
+	}
+
+
+	/**
+	 * @return The bucket holding the listing with the specified name, or -1 if there
+	 * is no such listing.
+	 */
+	private int findBucket(String name) {
+
+		int hash = 0;
+		for(int i = 0; i < name.length(); ++i)
+			hash = 31*hash + (name.charAt(i)&255);
+
+		hash = spread(hash);
+		int mask = index.length - 1;
+		for(int bucket = hash & mask;; bucket = (bucket + 1) & mask) {
+
+			int value = index[bucket];
+			if(value == 0)
+				return -1;
+
+			if(hashes[value - 1] != hash)
+				continue;
+
+			int offset = listings[value - 1];
+			if(getNameLength(offset) != name.length())
+				continue;
+
+			int start = offset + LISTING_SIZE;
+			int i = 0;
+			while(i < name.length() && (char) (directory.get(start + i)&255) == name.charAt(i))
+				++i;
+
+			if(i == name.length())
+				return bucket;
+		}
+	}
+
+
+	/**
+	 * Mixes the bits of a name's hash, since names that only differ in a number near
+	 * the end would otherwise land in long runs of neighbouring buckets.
+	 */
+	private static int spread(int hash) {
+
+		hash = (hash ^ (hash >>> 16)) * -2048144789;
+		hash = (hash ^ (hash >>> 13)) * -1028477387;
+		return hash ^ (hash >>> 16);
+	}
+}
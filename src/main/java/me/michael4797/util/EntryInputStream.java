@@ -0,0 +1,272 @@
+package me.michael4797.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the uncompressed data of an entry a chunk at a time, so that entries of any
+ * size can be copied to a file or another stream in a small, fixed amount of memory.
+ * The data is checked against the entry's checksum as it is read, and reading the
+ * last byte throws an exception instead of reaching the end if they don't match.
+ * <p>
+ * While the stream is open, the archive keeps the entry's data in place as it does
+ * for a snapshot, so the stream keeps reading the same data even if the entry is
+ * replaced or removed. Streams must be closed before the archive is. A stream may
+ * only be read by one thread at a time.
+ */
+public class EntryInputStream extends InputStream implements ReadableByteChannel{
+
+	private static final int CHUNK_SIZE = 65536;
+
+	private final BinaryRandomAccess source;
+	private final ZipArchive archive;
+	private final long epoch;
+
+	private final String name;
+	private final short compressionType;
+	private final long filePosition;
+	private final long compressedSize;
+	private final long uncompressedSize;
+	private final int crc32;
+
+	private final CRC32 checksum = new CRC32();
+	private Inflater inflater;
+	private byte[] input;
+	private byte[] transfer;
+	private long read;
+	private long written;
+	private boolean finished;
+	private boolean closed;
+
+
+	/**
+	 * @param entry The entry to read. Its local header must already have been read.
+	 * @param source The file to read the entry from.
+	 * @param archive The archive to release the entry's data back to once the stream
+	 * is closed, or null if something else keeps it in place.
+	 * @param epoch The epoch the stream was registered under with the archive.
+	 */
+	protected EntryInputStream(ArchiveEntry entry, BinaryRandomAccess source, ZipArchive archive, long epoch) throws IOException {
+
+		if(entry.compressionType != ZipArchive.COMPRESSION_TYPE_NONE && entry.compressionType != ZipArchive.COMPRESSION_TYPE_DEFLATE)
+			throw new IOException("Unsupported compression type " + entry.compressionType);
+
+		this.source = source;
+		this.archive = archive;
+		this.epoch = epoch;
+		name = entry.name;
+		compressionType = entry.compressionType;
+		filePosition = entry.getFilePosition();
+		compressedSize = entry.compressedSize;
+		uncompressedSize = entry.uncompressedSize;
+		crc32 = entry.crc32;
+		input = new byte[(int) Math.min(CHUNK_SIZE, Math.max(compressedSize, 1))];
+
+		if(compressionType == ZipArchive.COMPRESSION_TYPE_DEFLATE)
+			inflater = InflaterPool.acquire();
+	}
+
+
+	/**
+	 * @return The name of the entry being read.
+	 */
+	public String getName() {
+
+		return name;
+	}
+
+
+	/**
+	 * @return The number of uncompressed bytes that have been read so far.
+	 */
+	public long getBytesRead() {
+
+		return written;
+	}
+
+
+	@Override
+	public int read() throws IOException {
+
+		byte[] single = new byte[1];
+		if(read(single, 0, 1) < 0)
+			return -1;
+
+		return single[0]&255;
+	}
+
+
+	@Override
+	public int read(byte[] data, int offset, int length) throws IOException {
+
+		if(closed)
+			throw new IOException("Stream closed");
+
+		if(offset < 0 || length < 0 || length > data.length - offset)
+			throw new IndexOutOfBoundsException();
+
+		if(length == 0)
+			return 0;
+
+		if(finished)
+			return -1;
+
+		int count = compressionType == ZipArchive.COMPRESSION_TYPE_NONE ? readStored(data, offset, length) : readDeflated(data, offset, length);
+		if(count < 0) {
+
+			finish();
+			return -1;
+		}
+
+		checksum.update(data, offset, count);
+		written += count;
+		if(written > uncompressedSize)
+			throw new IOException("Entry \"" + name + "\" is corrupt");
+
+		//Stored data ends exactly at its size, so the checksum can be checked with the last byte
+		if(compressionType == ZipArchive.COMPRESSION_TYPE_NONE && written == uncompressedSize)
+			finish();
+
+		return count;
+	}
+
+
+	private int readStored(byte[] data, int offset, int length) throws IOException {
+
+		if(read >= compressedSize)
+			return -1;
+
+		int count = (int) Math.min(length, compressedSize - read);
+		source.read(filePosition + read, data, offset, count);
+		read += count;
+		return count;
+	}
+
+
+	private int readDeflated(byte[] data, int offset, int length) throws IOException {
+
+		try {
+
+			while(true) {
+
+				int count = inflater.inflate(data, offset, length);
+				if(count > 0)
+					return count;
+
+				if(inflater.finished())
+					return -1;
+
+				//A valid entry never waits on a dictionary, and never stops short of its end
+				if(inflater.needsDictionary() || read >= compressedSize)
+					throw new IOException("Entry \"" + name + "\" is corrupt");
+
+				int chunk = (int) Math.min(input.length, compressedSize - read);
+				source.read(filePosition + read, input, 0, chunk);
+				inflater.setInput(input, 0, chunk);
+				read += chunk;
+			}
+		}catch(DataFormatException e) {
+
+			throw new IOException("Entry \"" + name + "\" is corrupt", e);
+		}
+	}
+
+
+	/**
+	 * Called once all of the data has been read. Checks it against the entry's size
+	 * and checksum and gives the inflater back to the pool.
+	 */
+	private void finish() throws IOException {
+
+		finished = true;
+		releaseInflater();
+		if(written != uncompressedSize || (int) checksum.getValue() != crc32)
+			throw new IOException("Entry \"" + name + "\" is corrupt");
+	}
+
+
+	/**
+	 * Reads into the buffer directly when it is backed by an array, otherwise through
+	 * a chunk sized array that is kept for the next read.
+	 * @return The number of bytes read, or -1 if the end of the entry was reached.
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+
+		if(closed)
+			throw new ClosedChannelException();
+
+		if(!dst.hasRemaining())
+			return 0;
+
+		if(dst.hasArray()) {
+
+			int count = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if(count > 0)
+				dst.position(dst.position() + count);
+
+			return count;
+		}
+
+		if(transfer == null)
+			transfer = new byte[CHUNK_SIZE];
+
+		int count = read(transfer, 0, Math.min(transfer.length, dst.remaining()));
+		if(count > 0)
+			dst.put(transfer, 0, count);
+
+		return count;
+	}
+
+
+	@Override
+	public int available() throws IOException {
+
+		if(closed || finished || compressionType != ZipArchive.COMPRESSION_TYPE_NONE)
+			return 0;
+
+		return (int) Math.min(Integer.MAX_VALUE, compressedSize - read);
+	}
+
+
+	@Override
+	public boolean isOpen() {
+
+		return !closed;
+	}
+
+
+	/**
+	 * Closes the stream, letting the archive reuse the entry's space if it was removed
+	 * or replaced while the stream was open.
+	 */
+	@Override
+	public void close() {
+
+		if(closed)
+			return;
+
+		closed = true;
+		releaseInflater();
+		input = null;
+		transfer = null;
+		if(archive != null)
+			archive.releaseSnapshot(epoch);
+	}
+
+
+	private void releaseInflater() {
+
+		if(inflater == null)
+			return;
+
+		InflaterPool.release(inflater);
+		inflater = null;
+	}
+}
@@ -0,0 +1,84 @@
+package me.michael4797.util;
+
+/**
+ * Holds the entries of a {@link ZipArchive} by name, in the order they are listed in
+ * the central directory. A table may keep the entries themselves, or only their
+ * state, in which case the entries it returns are views that pass any changes made
+ * to them back to the table.
+ */
+public interface EntryTable extends Iterable<ArchiveEntry> {
+
+	/**
+	 * @return The number of entries in the table.
+	 */
+	int size();
+
+	/**
+	 * @param name The name of the entry.
+	 * @return True if the table holds an entry with the specified name.
+	 */
+	boolean containsName(String name);
+
+	/**
+	 * @param name The name of the entry.
+	 * @return The entry with the specified name, or null if there is none.
+	 */
+	ArchiveEntry get(String name);
+
+	/**
+	 * @param entry An entry previously returned by or added to this table.
+	 * @return True if the entry is still the one held under its name, false if it
+	 * was removed or replaced.
+	 */
+	boolean contains(ArchiveEntry entry);
+
+	/**
+	 * Adds an entry to the end of the table. If an entry with the same name already
+	 * exists it is replaced, and the new entry takes its place in the order instead.
+	 * @param entry The entry to add.
+	 */
+	void put(ArchiveEntry entry);
+
+	/**
+	 * Removes an entry from the table.
+	 * @param entry The entry to remove.
+	 * @return True if the entry was removed, false if it wasn't in the table.
+	 */
+	boolean remove(ArchiveEntry entry);
+
+	/**
+	 * Records the position, header size and directory offset of an entry after they
+	 * have changed. Tables that hold the entries themselves have nothing to do.
+	 * @param entry The entry that changed.
+	 */
+	void update(ArchiveEntry entry);
+
+	/**
+	 * Records the local header size of an entry once it has been read from the file.
+	 * Unlike the other methods, this is called by threads that only hold the
+	 * archive's read lock, so several may call it for the same entry at once. It
+	 * must only store the header size, with a single write of an int. Every caller
+	 * stores the same size, since the header an entry points to can't change while
+	 * the read lock is held, and a reader that doesn't see another's write only reads
+	 * the header again. Tables that hold the entries themselves have nothing to do.
+	 * @param entry An entry previously returned by this table, whose header size is known.
+	 */
+	void cacheHeaderSize(ArchiveEntry entry);
+
+	/**
+	 * @param entry An entry previously returned by this table.
+	 * @return The central directory record kept for the entry, or null if there is
+	 * none and the entry has to encode it. Tables that hold the entries themselves
+	 * return null, since the entries keep their own records.
+	 */
+	byte[] getDirectoryRecord(ArchiveEntry entry);
+
+	/**
+	 * Keeps the central directory record of an entry, so that views of it created
+	 * later don't encode it again. The record is dropped once the entry moves or is
+	 * replaced. Tables that hold the entries themselves have nothing to do.
+	 * @param entry An entry previously returned by this table.
+	 * @param record The entry's central directory record at its current position.
+	 */
+	void cacheDirectoryRecord(ArchiveEntry entry, byte[] record);
+}
@@ -0,0 +1,255 @@
+package me.michael4797.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A {@link BlockAllocator} that gives every entry exactly the space it needs. Free
+ * space is kept as a set of extents which are merged with their neighbors when
+ * released, and new blocks are taken from the smallest extent that fits. This keeps
+ * an archive close to the size of its contents, at the cost of updated entries
+ * fitting back into their old block less often than with a {@link BuddyAllocator}.
+ * Because an extent can start anywhere, an archive opened with this allocator keeps
+ * every entry where it already is, whichever tool wrote it.
+ */
+public class ExtentAllocator implements BlockAllocator{
+
+	private final TreeMap<Long, Long> extents = new TreeMap<>();
+	private final TreeSet<Extent> bySize = new TreeSet<>();
+	
+	private long totalSize;
+	
+	
+	@Override
+	public long getBlock(long size) {
+		
+		Extent fit = bySize.ceiling(new Extent(Long.MIN_VALUE, size));
+		if(fit != null) {
+			
+			removeExtent(fit.position, fit.size);
+			if(fit.size > size)
+				addExtent(fit.position + size, fit.size - size);
+			
+			return fit.position;
+		}
+		
+		Map.Entry<Long, Long> last = extents.lastEntry();
+		long position = totalSize;
+		if(last != null && last.getKey() + last.getValue() == totalSize) {
+			
+			position = last.getKey();
+			removeExtent(last.getKey(), last.getValue());
+		}
+		
+		totalSize = position + size;
+		return position;
+	}
+	
+	
+	@Override
+	public boolean getBlock(long size, long position) {
+		
+		if(position + size > totalSize) {
+			
+			long end = totalSize;
+			totalSize = position + size;
+			freeBlock(end, totalSize - end);
+		}
+		
+		Map.Entry<Long, Long> free = extents.floorEntry(position);
+		if(free == null)
+			return false;
+		
+		long start = free.getKey();
+		long end = start + free.getValue();
+		if(end < position + size)
+			return false;
+		
+		removeExtent(start, free.getValue());
+		if(start < position)
+			addExtent(start, position - start);
+		
+		if(end > position + size)
+			addExtent(position + size, end - position - size);
+		
+		return true;
+	}
+	
+	
+	@Override
+	public long getBlockAfter(long size, long after) {
+		
+		Long first = extents.floorKey(after);
+		if(first == null)
+			first = after;
+		
+		for(Map.Entry<Long, Long> free: extents.tailMap(first, true).entrySet()) {
+			
+			long position = Math.max(free.getKey(), after);
+			if(free.getKey() + free.getValue() - position >= size) {
+				
+				getBlock(size, position);
+				return position;
+			}
+		}
+		
+		long position = Math.max(totalSize, after);
+		Map.Entry<Long, Long> last = extents.lastEntry();
+		if(last != null && last.getKey() + last.getValue() == totalSize)
+			position = Math.max(last.getKey(), after);
+		
+		getBlock(size, position);
+		return position;
+	}
+	
+	
+	@Override
+	public long getHighBlock(long size) {
+		
+		//The free space at the very end is only used if nothing else fits, since using it grows the archive
+		for(Map.Entry<Long, Long> free: extents.descendingMap().entrySet()) {
+			
+			if(free.getValue() >= size && free.getKey() + free.getValue() != totalSize) {
+				
+				long position = free.getKey() + free.getValue() - size;
+				getBlock(size, position);
+				return position;
+			}
+		}
+		
+		Map.Entry<Long, Long> last = extents.lastEntry();
+		long position = totalSize;
+		if(last != null && last.getKey() + last.getValue() == totalSize) {
+			
+			position = last.getKey();
+			removeExtent(last.getKey(), last.getValue());
+		}
+		
+		totalSize = position + size;
+		return position;
+	}
+	
+	
+	@Override
+	public void freeBlock(long position, long size) {
+		
+		Map.Entry<Long, Long> lower = extents.floorEntry(position);
+		if(lower != null && lower.getKey() + lower.getValue() == position) {
+			
+			removeExtent(lower.getKey(), lower.getValue());
+			position = lower.getKey();
+			size += lower.getValue();
+		}
+		
+		Long upper = extents.get(position + size);
+		if(upper != null) {
+			
+			removeExtent(position + size, upper);
+			size += upper;
+		}
+		
+		addExtent(position, size);
+	}
+	
+	
+	@Override
+	public boolean resize(long position, long oldSize, long newSize) {
+		
+		long end = position + oldSize;
+		if(newSize <= oldSize) {
+			
+			if(newSize < oldSize)
+				freeBlock(position + newSize, oldSize - newSize);
+			
+			return true;
+		}
+		
+		if(end == totalSize) {
+			
+			totalSize = position + newSize;
+			return true;
+		}
+		
+		Long free = extents.get(end);
+		if(free == null)
+			return false;
+		
+		long needed = newSize - oldSize;
+		if(free < needed) {
+			
+			if(end + free != totalSize)
+				return false;
+			
+			//The free space runs to the end, so the block can grow past it
+			removeExtent(end, free);
+			totalSize = position + newSize;
+			return true;
+		}
+		
+		removeExtent(end, free);
+		if(free > needed)
+			addExtent(end + needed, free - needed);
+		
+		return true;
+	}
+	
+	
+	@Override
+	public long getBlockSize(long size) {
+		
+		return size;
+	}
+	
+	
+	@Override
+	public long trim() {
+		
+		Map.Entry<Long, Long> last = extents.lastEntry();
+		if(last != null && last.getKey() + last.getValue() == totalSize) {
+			
+			removeExtent(last.getKey(), last.getValue());
+			totalSize = last.getKey();
+		}
+		
+		return totalSize;
+	}
+	
+	
+	private void addExtent(long position, long size) {
+		
+		extents.put(position, size);
+		bySize.add(new Extent(position, size));
+	}
+	
+	
+	private void removeExtent(long position, long size) {
+		
+		extents.remove(position);
+		bySize.remove(new Extent(position, size));
+	}
+	
+	
+	private static class Extent implements Comparable<Extent>{
+		
+		private final long position;
+		private final long size;
+		
+		
+		private Extent(long position, long size) {
+			
+			this.position = position;
+			this.size = size;
+		}
+
+
+		@Override
+		public int compareTo(Extent o) {
+			
+			if(size != o.size)
+				return Long.compare(size, o.size);
+			
+			return Long.compare(position, o.position);
+		}
+	}
+}
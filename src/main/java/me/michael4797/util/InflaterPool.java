@@ -0,0 +1,51 @@
+package me.michael4797.util;
+
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps inflaters for raw deflate data once they are finished with, so that reading
+ * many entries doesn't set up and tear down a new inflater, and its native memory,
+ * for each one. Only a few are kept, enough for the threads that read at once.
+ */
+class InflaterPool{
+
+	private static final int MAX_POOLED = 16;
+	private static final ArrayDeque<Inflater> pool = new ArrayDeque<>();
+
+
+	/**
+	 * @return An inflater ready for a new entry, taken from the pool if it has one.
+	 */
+	protected static Inflater acquire() {
+
+		synchronized(pool) {
+
+			Inflater inflater = pool.poll();
+			if(inflater != null)
+				return inflater;
+		}
+
+		return new Inflater(true);
+	}
+
+
+	/**
+	 * Resets an inflater and returns it to the pool, or ends it if the pool is full.
+	 * The inflater must not be used again by the caller.
+	 */
+	protected static void release(Inflater inflater) {
+
+		inflater.reset();
+		synchronized(pool) {
+
+			if(pool.size() < MAX_POOLED) {
+
+				pool.push(inflater);
+				return;
+			}
+		}
+
+		inflater.end();
+	}
+}
@@ -0,0 +1,82 @@
+package me.michael4797.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The default {@link EntryTable}, which keeps every entry as an object in a
+ * {@link LinkedHashMap}. Lookups are as fast as they can be, at the cost of a few
+ * hundred bytes for each entry.
+ */
+public class LinkedEntryTable implements EntryTable{
+
+	private final LinkedHashMap<String, ArchiveEntry> entries = new LinkedHashMap<>();
+
+
+	@Override
+	public int size() {
+
+		return entries.size();
+	}
+
+
+	@Override
+	public boolean containsName(String name) {
+
+		return entries.containsKey(name);
+	}
+
+
+	@Override
+	public ArchiveEntry get(String name) {
+
+		return entries.get(name);
+	}
+
+
+	@Override
+	public boolean contains(ArchiveEntry entry) {
+
+		return entries.get(entry.name) == entry;
+	}
+
+
+	@Override
+	public void put(ArchiveEntry entry) {
+
+		entries.put(entry.name, entry);
+	}
+
+
+	@Override
+	public boolean remove(ArchiveEntry entry) {
+
+		return entries.remove(entry.name, entry);
+	}
+
+
+	@Override
+	public void update(ArchiveEntry entry) {}
+
+
+	@Override
+	public void cacheHeaderSize(ArchiveEntry entry) {}
+
+
+	@Override
+	public byte[] getDirectoryRecord(ArchiveEntry entry) {
+
+		return null;
+	}
+
+
+	@Override
+	public void cacheDirectoryRecord(ArchiveEntry entry, byte[] record) {}
+
+
+	@Override
+	public Iterator<ArchiveEntry> iterator() {
+
+		return entries.values().iterator();
+	}
+}
@@ -0,0 +1,515 @@
+package me.michael4797.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Finds the entries of an archive without its central directory, by scanning the
+ * file for local headers. The file is split into ranges that are scanned at the same
+ * time with positional reads, and every header found is only kept if the data after
+ * it matches the checksum it gives. Central directory records left in the file are
+ * collected as well, to help decide between copies of an entry with the same name.
+ */
+class LocalHeaderScanner{
+
+	private static final int SCAN_CHUNK = 1048576;
+	private static final int RANGES_PER_THREAD = 4;
+	private static final int DESCRIPTOR_SIGNATURE = 134695760;
+	private static final int FLAG_ENCRYPTED = 1;
+	private static final int FLAG_DESCRIPTOR = 8;
+
+	private final BinaryRandomAccess source;
+	private final long length;
+	private final List<DirectoryRecord> records = Collections.synchronizedList(new ArrayList<>());
+	private final ArrayList<String> ambiguousNames = new ArrayList<>();
+
+
+	protected LocalHeaderScanner(BinaryRandomAccess source) throws IOException {
+
+		this.source = source;
+		length = source.length();
+	}
+
+
+	/**
+	 * Scans the whole file. Entries found inside the data of another entry, such as
+	 * the entries of an archive stored in this one, are dropped. Where more than one
+	 * entry has the same name, which happens when old copies of replaced entries are
+	 * still in the file, the one modified last is kept. Modification times are only
+	 * kept to two seconds, so copies written close together can tie. A tie is broken
+	 * by the last central directory written if it survived and lists exactly one of
+	 * the tied copies, otherwise the copy furthest into the file is kept and the name
+	 * is reported by {@link #getAmbiguousNames()}.
+	 * @param threads The number of ranges to scan at once.
+	 * @return The entries found, ordered by position.
+	 * @throws IOException If an error is encountered while reading the file.
+	 */
+	protected List<ArchiveEntry> scan(int threads) throws IOException {
+
+		int ranges = Math.max(1, threads) * RANGES_PER_THREAD;
+		long rangeSize = Math.max(SCAN_CHUNK, (length + ranges - 1) / ranges);
+
+		ArrayList<ArchiveEntry> found = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+
+			ArrayList<Future<List<ArchiveEntry>>> results = new ArrayList<>();
+			for(long start = 0; start < length; start += rangeSize) {
+
+				long end = Math.min(length, start + rangeSize);
+				long rangeStart = start;
+				results.add(executor.submit(() -> scanRange(rangeStart, end)));
+			}
+
+			for(Future<List<ArchiveEntry>> result: results)
+				found.addAll(result.get());
+		}catch(InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while scanning", e);
+		}catch(ExecutionException e) {
+
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+
+			throw new IOException(e.getCause());
+		}finally {
+
+			executor.shutdownNow();
+		}
+
+		found.sort(Comparator.comparingLong(ArchiveEntry::getHeaderPosition));
+
+		//An entry that starts inside the one before it is part of that entry's data
+		TreeMap<Long, ArchiveEntry> kept = new TreeMap<>();
+		LinkedHashMap<String, ArrayList<ArchiveEntry>> copies = new LinkedHashMap<>();
+		long endOfEntries = 0;
+		for(ArchiveEntry entry: found) {
+
+			if(entry.getHeaderPosition() < endOfEntries)
+				continue;
+
+			endOfEntries = entry.getHeaderPosition() + entry.getTotalSize();
+			kept.put(entry.getHeaderPosition(), entry);
+			copies.computeIfAbsent(entry.name, name -> new ArrayList<>()).add(entry);
+		}
+
+		HashSet<Long> listed = getListedPositions(kept);
+		ArrayList<ArchiveEntry> entries = new ArrayList<>(copies.size());
+		for(ArrayList<ArchiveEntry> named: copies.values())
+			entries.add(choose(named, listed));
+
+		entries.sort(Comparator.comparingLong(ArchiveEntry::getHeaderPosition));
+		return entries;
+	}
+
+
+	/**
+	 * @return The names of the entries for which the last scan had to choose between
+	 * copies of different data without knowing which was written last. The copy that
+	 * was kept may be an old one.
+	 */
+	protected List<String> getAmbiguousNames() {
+
+		return ambiguousNames;
+	}
+
+
+	/**
+	 * Finds the entries listed by the last central directory written, if any of it
+	 * survived. That directory was written after every entry, while older ones are
+	 * left in space that entries were later written over or around, and list copies
+	 * that may since have been replaced. So only the records after the last entry are
+	 * used, and only where they match the entry they point to exactly.
+	 * @return The positions of the entries listed by the last directory.
+	 */
+	private HashSet<Long> getListedPositions(TreeMap<Long, ArchiveEntry> entries) {
+
+		HashSet<Long> listed = new HashSet<>();
+		if(entries.isEmpty())
+			return listed;
+
+		ArchiveEntry last = entries.lastEntry().getValue();
+		long endOfEntries = last.getHeaderPosition() + last.getTotalSize();
+		synchronized(records) {
+
+			for(DirectoryRecord record: records) {
+
+				if(record.position < endOfEntries)
+					continue;
+
+				ArchiveEntry entry = entries.get(record.headerPosition);
+				if(entry != null && entry.name.equals(record.name) && entry.crc32 == record.crc32 && entry.compressedSize == record.compressedSize)
+					listed.add(record.headerPosition);
+			}
+		}
+
+		return listed;
+	}
+
+
+	/**
+	 * Chooses which of the copies of an entry to keep. Directory records only break
+	 * ties between the copies modified last, since a directory may be older than the
+	 * entries written after it if the directory that listed them was lost.
+	 * @param copies The copies of the entry, ordered by position.
+	 * @param listed The positions of the entries listed by a directory.
+	 */
+	private ArchiveEntry choose(List<ArchiveEntry> copies, HashSet<Long> listed) {
+
+		ArchiveEntry last = copies.get(copies.size() - 1);
+		if(copies.size() == 1)
+			return last;
+
+		long newest = Long.MIN_VALUE;
+		for(ArchiveEntry copy: copies)
+			newest = Math.max(newest, getModified(copy));
+
+		ArrayList<ArchiveEntry> tied = new ArrayList<>();
+		for(ArchiveEntry copy: copies)
+			if(getModified(copy) == newest)
+				tied.add(copy);
+
+		ArchiveEntry chosen = tied.get(tied.size() - 1);
+		if(tied.size() == 1)
+			return chosen;
+
+		//Copies of the same data are interchangeable
+		boolean identical = true;
+		for(ArchiveEntry copy: tied)
+			identical &= copy.crc32 == chosen.crc32 && copy.compressedSize == chosen.compressedSize && copy.uncompressedSize == chosen.uncompressedSize;
+
+		if(identical)
+			return chosen;
+
+		ArchiveEntry listedCopy = null;
+		int listedCount = 0;
+		for(ArchiveEntry copy: tied) {
+
+			if(listed.contains(copy.getHeaderPosition())) {
+
+				listedCopy = copy;
+				++listedCount;
+			}
+		}
+
+		if(listedCount == 1)
+			return listedCopy;
+
+		ambiguousNames.add(chosen.name);
+		return chosen;
+	}
+
+
+	/**
+	 * Finds the entries whose local headers start within the specified range. The
+	 * data of each entry found is skipped, since any header in it belongs to the entry.
+	 */
+	private List<ArchiveEntry> scanRange(long start, long end) throws IOException {
+
+		ArrayList<ArchiveEntry> found = new ArrayList<>();
+		byte[] chunk = new byte[SCAN_CHUNK + 3];
+		long position = start;
+		while(position < end) {
+
+			int read = (int) Math.min(chunk.length, length - position);
+			int limit = (int) Math.min(SCAN_CHUNK, end - position);
+			source.read(position, chunk, 0, read);
+
+			long next = position + limit;
+			for(int i = 0; i < limit && i + 3 < read; ++i) {
+
+				if(chunk[i] != 80 || chunk[i + 1] != 75)
+					continue;
+
+				if(chunk[i + 2] == 1 && chunk[i + 3] == 2) {
+
+					DirectoryRecord record = readDirectoryRecord(position + i);
+					if(record != null)
+						records.add(record);
+
+					continue;
+				}
+
+				if(chunk[i + 2] != 3 || chunk[i + 3] != 4)
+					continue;
+
+				ArchiveEntry entry = readEntry(position + i);
+				if(entry == null)
+					continue;
+
+				found.add(entry);
+				long endOfEntry = entry.getHeaderPosition() + entry.getTotalSize();
+				if(endOfEntry >= position + limit) {
+
+					next = endOfEntry;
+					break;
+				}
+
+				i = (int) (endOfEntry - position) - 1;
+			}
+
+			position = next;
+		}
+
+		return found;
+	}
+
+
+	/**
+	 * Reads the local header at the specified position and checks the data after it.
+	 * @return The entry, or null if the header is damaged, describes data that
+	 * doesn't fit in the file, or the data doesn't match its checksum.
+	 */
+	private ArchiveEntry readEntry(long position) throws IOException {
+
+		if(position + 30 > length)
+			return null;
+
+		byte[] header = new byte[30];
+		source.read(position, header, 0, header.length);
+		BinaryReader reader = new BinaryReader(header);
+		reader.skip(6); //Skip the signature & version
+
+		int flags = reader.readShort()&65535;
+		short compressionType = reader.readShort();
+		short lastModifiedTime = reader.readShort();
+		short lastModifiedDate = reader.readShort();
+		int crc32 = reader.readInt();
+		long compressedSize = reader.readInt()&ZipArchive.ZIP64_MAGIC;
+		long uncompressedSize = reader.readInt()&ZipArchive.ZIP64_MAGIC;
+		int fileNameLength = reader.readShort()&65535;
+		int fileExtraLength = reader.readShort()&65535;
+
+		if((flags & FLAG_ENCRYPTED) != 0 || fileNameLength == 0)
+			return null;
+
+		if(compressionType != ZipArchive.COMPRESSION_TYPE_NONE && compressionType != ZipArchive.COMPRESSION_TYPE_DEFLATE)
+			return null;
+
+		int headerSize = 30 + fileNameLength + fileExtraLength;
+		if(position + headerSize > length)
+			return null;
+
+		byte[] variable = new byte[fileNameLength + fileExtraLength];
+		source.read(position + 30, variable, 0, variable.length);
+		reader = new BinaryReader(variable);
+		String name = reader.readString(fileNameLength);
+		if(name.length() != fileNameLength)
+			return null;
+
+		//The local ZIP64 field holds both sizes, in this order
+		boolean zip64 = false;
+		while(reader.getPosition() + 4 <= variable.length) {
+
+			short extraId = reader.readShort();
+			int endOfField = reader.getPosition() + 2 + (reader.readShort()&65535);
+			if(extraId == ZipArchive.ZIP64_EXTRA_ID && endOfField <= variable.length) {
+
+				zip64 = true;
+				if(uncompressedSize == ZipArchive.ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					uncompressedSize = reader.readLong();
+				if(compressedSize == ZipArchive.ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					compressedSize = reader.readLong();
+			}
+
+			reader.setPosition(endOfField);
+		}
+
+		if((flags & FLAG_DESCRIPTOR) != 0)
+			return readDescribedEntry(position, headerSize, compressionType, lastModifiedTime, lastModifiedDate, name, zip64);
+
+		if(compressedSize < 0 || uncompressedSize < 0 || position + headerSize + compressedSize > length)
+			return null;
+
+		ArchiveEntry entry = new ArchiveEntry(compressionType, lastModifiedTime, lastModifiedDate, crc32, compressedSize, uncompressedSize, name, position, 0);
+		entry.setHeaderSize(headerSize);
+		try {
+
+			entry.verify(source);
+		}catch(IOException e) {
+
+			return null;
+		}
+
+		return entry;
+	}
+
+
+	/**
+	 * Reads an entry whose sizes and checksum follow its data rather than being in
+	 * its local header, as written by streams that don't know them up front. The
+	 * sizes are found by inflating the data until it ends, so only compressed entries
+	 * can be read.
+	 * @param zip64 True if the local header has a ZIP64 field, in which case the
+	 * descriptor's sizes are eight bytes long.
+	 */
+	private ArchiveEntry readDescribedEntry(long position, int headerSize, short compressionType, short lastModifiedTime, short lastModifiedDate, String name, boolean zip64) throws IOException {
+
+		if(compressionType != ZipArchive.COMPRESSION_TYPE_DEFLATE)
+			return null;
+
+		long dataPosition = position + headerSize;
+		Inflater inflater = new Inflater(true);
+		CRC32 checksum = new CRC32();
+		byte[] input = new byte[65536];
+		byte[] output = new byte[65536];
+		long read = 0;
+		try {
+
+			while(!inflater.finished()) {
+
+				if(inflater.needsInput()) {
+
+					int length = (int) Math.min(input.length, this.length - dataPosition - read);
+					if(length <= 0)
+						return null;
+
+					source.read(dataPosition + read, input, 0, length);
+					inflater.setInput(input, 0, length);
+					read += length;
+				}
+
+				int length = inflater.inflate(output);
+				checksum.update(output, 0, length);
+				if(length == 0 && !inflater.needsInput() && !inflater.finished())
+					return null;
+			}
+
+			long compressedSize = inflater.getBytesRead();
+			long uncompressedSize = inflater.getBytesWritten();
+
+			//The descriptor's signature is optional, and its sizes are eight bytes long in ZIP64 entries
+			long descriptor = dataPosition + compressedSize;
+			boolean longSizes = zip64 || compressedSize >= ZipArchive.ZIP64_MAGIC || uncompressedSize >= ZipArchive.ZIP64_MAGIC;
+			int descriptorSize = longSizes ? 20 : 12;
+			if(descriptor + descriptorSize > length)
+				return null;
+
+			//Only the bytes the descriptor needs are required, since the last entry of a truncated file may end right after it
+			byte[] fields = new byte[(int) Math.min(descriptorSize + 4, length - descriptor)];
+			source.read(descriptor, fields, 0, fields.length);
+			BinaryReader reader = new BinaryReader(fields);
+			int crc32 = reader.readInt();
+			if(crc32 == DESCRIPTOR_SIGNATURE && crc32 != (int) checksum.getValue()) {
+
+				if(fields.length < descriptorSize + 4)
+					return null;
+
+				crc32 = reader.readInt();
+			}
+
+			long describedCompressedSize = longSizes ? reader.readLong() : reader.readInt()&ZipArchive.ZIP64_MAGIC;
+			long describedUncompressedSize = longSizes ? reader.readLong() : reader.readInt()&ZipArchive.ZIP64_MAGIC;
+			if(crc32 != (int) checksum.getValue() || describedCompressedSize != compressedSize || describedUncompressedSize != uncompressedSize)
+				return null;
+
+			ArchiveEntry entry = new ArchiveEntry(compressionType, lastModifiedTime, lastModifiedDate, crc32, compressedSize, uncompressedSize, name, position, 0);
+			entry.setHeaderSize(headerSize);
+			return entry;
+		}catch(DataFormatException e) {
+
+			return null;
+		}finally {
+
+			inflater.end();
+		}
+	}
+
+
+	/**
+	 * Reads the central directory record at the specified position, left behind by
+	 * this or an earlier version of the directory.
+	 * @return The record, or null if it is damaged or doesn't fit in the file.
+	 */
+	private DirectoryRecord readDirectoryRecord(long position) throws IOException {
+
+		if(position + 46 > length)
+			return null;
+
+		byte[] header = new byte[46];
+		source.read(position, header, 0, header.length);
+		BinaryReader reader = new BinaryReader(header);
+		reader.skip(16); //Skip the signature, versions, flags, compression type & modified time
+
+		int crc32 = reader.readInt();
+		long compressedSize = reader.readInt()&ZipArchive.ZIP64_MAGIC;
+		long uncompressedSize = reader.readInt()&ZipArchive.ZIP64_MAGIC;
+		int fileNameLength = reader.readShort()&65535;
+		int fileExtraLength = reader.readShort()&65535;
+		reader.skip(10); //Skip the comment length, disk number & attributes
+		long headerPosition = reader.readInt()&ZipArchive.ZIP64_MAGIC;
+
+		if(fileNameLength == 0 || position + 46 + fileNameLength + fileExtraLength > length)
+			return null;
+
+		byte[] variable = new byte[fileNameLength + fileExtraLength];
+		source.read(position + 46, variable, 0, variable.length);
+		reader = new BinaryReader(variable);
+		String name = reader.readString(fileNameLength);
+		if(name.length() != fileNameLength)
+			return null;
+
+		//The directory's ZIP64 field only holds the values that don't fit, in this order
+		while(reader.getPosition() + 4 <= variable.length) {
+
+			short extraId = reader.readShort();
+			int endOfField = reader.getPosition() + 2 + (reader.readShort()&65535);
+			if(extraId == ZipArchive.ZIP64_EXTRA_ID && endOfField <= variable.length) {
+
+				if(uncompressedSize == ZipArchive.ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					uncompressedSize = reader.readLong();
+				if(compressedSize == ZipArchive.ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					compressedSize = reader.readLong();
+				if(headerPosition == ZipArchive.ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					headerPosition = reader.readLong();
+			}
+
+			reader.setPosition(endOfField);
+		}
+
+		return new DirectoryRecord(position, name, crc32, compressedSize, headerPosition);
+	}
+
+
+	/**
+	 * @return The entry's last modified date and time as a single comparable value.
+	 */
+	private static long getModified(ArchiveEntry entry) {
+
+		return ((entry.lastModifiedDate&65535L) << 16) | (entry.lastModifiedTime&65535L);
+	}
+
+
+	private static class DirectoryRecord{
+
+		private final long position;
+		private final String name;
+		private final int crc32;
+		private final long compressedSize;
+		private final long headerPosition;
+
+
+		private DirectoryRecord(long position, String name, int crc32, long compressedSize, long headerPosition) {
+
+			this.position = position;
+			this.name = name;
+			this.crc32 = crc32;
+			this.compressedSize = compressedSize;
+			this.headerPosition = headerPosition;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package me.michael4797.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link FileChannel} over a growable buffer held outside of the heap rather than
+ * a file, so that an archive can be built entirely in memory and only written out
+ * once it is finished. The buffer doubles in size whenever a write runs past its
+ * end, up to the two gigabytes a single buffer can hold. The channel can't be
+ * mapped or locked.
+ */
+public class MemoryChannel extends FileChannel{
+
+	private static final int INITIAL_CAPACITY = 65536;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private ByteBuffer buffer;
+	private int size;
+	private int position;
+
+
+	public MemoryChannel() {
+
+		this(INITIAL_CAPACITY);
+	}
+
+
+	/**
+	 * Creates an empty channel with room for the specified number of bytes before
+	 * the buffer has to grow.
+	 * @param capacity The initial size of the buffer.
+	 */
+	public MemoryChannel(int capacity) {
+
+		buffer = ByteBuffer.allocateDirect(Math.max(capacity, 1));
+	}
+
+
+	@Override
+	public synchronized int read(ByteBuffer dst, long position) throws IOException {
+
+		ensureOpen();
+		if(position >= size)
+			return -1;
+
+		int length = (int) Math.min(dst.remaining(), size - position);
+		dst.put(range(position, length));
+		return length;
+	}
+
+
+	@Override
+	public synchronized int write(ByteBuffer src, long position) throws IOException {
+
+		ensureOpen();
+		int length = src.remaining();
+		ensureCapacity(position + length);
+
+		ByteBuffer target = buffer.duplicate();
+		target.position((int) position);
+		target.put(src);
+		size = (int) Math.max(size, position + length);
+		return length;
+	}
+
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+
+		int read = read(dst, position);
+		if(read > 0)
+			position += read;
+
+		return read;
+	}
+
+
+	@Override
+	public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+
+		long total = 0;
+		for(int i = offset; i < offset + length; ++i) {
+
+			int read = read(dsts[i]);
+			if(read < 0)
+				return total == 0 ? -1 : total;
+
+			total += read;
+		}
+
+		return total;
+	}
+
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+
+		int written = write(src, position);
+		position += written;
+		return written;
+	}
+
+
+	@Override
+	public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+		long total = 0;
+		for(int i = offset; i < offset + length; ++i)
+			total += write(srcs[i]);
+
+		return total;
+	}
+
+
+	@Override
+	public synchronized long position() throws IOException {
+
+		ensureOpen();
+		return position;
+	}
+
+
+	@Override
+	public synchronized FileChannel position(long newPosition) throws IOException {
+
+		ensureOpen();
+		if(newPosition < 0 || newPosition > MAX_CAPACITY)
+			throw new IllegalArgumentException("Invalid position: " + newPosition);
+
+		position = (int) newPosition;
+		return this;
+	}
+
+
+	@Override
+	public synchronized long size() throws IOException {
+
+		ensureOpen();
+		return size;
+	}
+
+
+	@Override
+	public synchronized FileChannel truncate(long newSize) throws IOException {
+
+		ensureOpen();
+		if(newSize < 0)
+			throw new IllegalArgumentException("Invalid size: " + newSize);
+
+		if(newSize < size) {
+
+			//Bytes past the end must read as zero if the channel grows over them again
+			ByteBuffer cleared = buffer.duplicate();
+			cleared.position((int) newSize);
+			cleared.limit(size);
+			while(cleared.hasRemaining())
+				cleared.put((byte) 0);
+
+			size = (int) newSize;
+		}
+
+		if(position > newSize)
+			position = (int) newSize;
+
+		return this;
+	}
+
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+
+		ensureOpen();
+	}
+
+
+	@Override
+	public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+
+		ensureOpen();
+		if(position >= size || count <= 0)
+			return 0;
+
+		ByteBuffer source = range(position, (int) Math.min(count, size - position));
+		long transferred = 0;
+		while(source.hasRemaining()) {
+
+			int written = target.write(source);
+			if(written <= 0)
+				break;
+
+			transferred += written;
+		}
+
+		return transferred;
+	}
+
+
+	@Override
+	public synchronized long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+
+		ensureOpen();
+		if(position > size || count <= 0)
+			return 0;
+
+		ensureCapacity(position + count);
+		ByteBuffer target = buffer.duplicate();
+		target.position((int) position);
+		target.limit((int) (position + count));
+		while(target.hasRemaining())
+			if(src.read(target) <= 0)
+				break;
+
+		size = Math.max(size, target.position());
+		return target.position() - position;
+	}
+
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+
+		throw new UnsupportedOperationException("Memory channels cannot be mapped");
+	}
+
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+
+		throw new UnsupportedOperationException("Memory channels cannot be locked");
+	}
+
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+
+		throw new UnsupportedOperationException("Memory channels cannot be locked");
+	}
+
+
+	@Override
+	protected synchronized void implCloseChannel() throws IOException {
+
+		buffer = null;
+		size = 0;
+		position = 0;
+	}
+
+
+	private ByteBuffer range(long position, int length) {
+
+		ByteBuffer range = buffer.duplicate();
+		range.position((int) position);
+		range.limit((int) position + length);
+		return range;
+	}
+
+
+	private void ensureOpen() throws IOException {
+
+		if(!isOpen())
+			throw new ClosedChannelException();
+	}
+
+
+	/**
+	 * Grows the buffer to hold at least the specified number of bytes, doubling it
+	 * so that a long run of small writes only copies the contents a few times.
+	 * @throws IOException If the channel would grow past the largest buffer possible.
+	 */
+	private void ensureCapacity(long capacity) throws IOException {
+
+		if(capacity <= buffer.capacity())
+			return;
+
+		if(capacity > MAX_CAPACITY)
+			throw new IOException("Archive too large to be held in memory");
+
+		long grown = Math.max(capacity, Math.min((long) buffer.capacity() * 2, MAX_CAPACITY));
+		ByteBuffer larger = ByteBuffer.allocateDirect((int) grown);
+		larger.put(range(0, size));
+		buffer = larger;
+	}
+}
@@ -0,0 +1,40 @@
+package me.michael4797.util;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of {@link ZipArchive#salvage(java.io.File, int)}.
+ */
+public class SalvageReport{
+
+	private final int entryCount;
+	private final List<String> ambiguousNames;
+
+
+	protected SalvageReport(int entryCount, List<String> ambiguousNames) {
+
+		this.entryCount = entryCount;
+		this.ambiguousNames = Collections.unmodifiableList(ambiguousNames);
+	}
+
+
+	/**
+	 * @return The number of entries listed in the new central directory.
+	 */
+	public int getEntryCount() {
+
+		return entryCount;
+	}
+
+
+	/**
+	 * @return The names of the entries that had more than one copy in the file, with
+	 * different data and the same modification time, and nothing else to tell which
+	 * copy was written last. The copy that was listed may hold old data.
+	 */
+	public List<String> getAmbiguousNames() {
+
+		return ambiguousNames;
+	}
+}
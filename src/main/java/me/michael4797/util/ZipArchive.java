@@ -3,11 +3,25 @@ package me.michael4797.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.duelimpact.services.ZipPrinter; // [RCS] Used for updating the progress meter.
 
@@ -19,19 +33,53 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 	protected static final int LOCF_SIGNATURE = 67324752;
 	protected static final int CD_SIGNATURE = 33639248;
 	private static final int EOCD_SIGNATURE = 101010256;
+	private static final int ZIP64_EOCD_SIGNATURE = 101075792;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 117853008;
+	
+	protected static final short ZIP64_EXTRA_ID = 1;
+	protected static final long ZIP64_MAGIC = 4294967295L;
 	
-	private static final byte MINIMUM_BLOCK_SIZE = 5;
 	private static final int EOCD_SIZE = 22;
+	private static final int ZIP64_EOCD_SIZE = 56;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	
+	//Names that only differ in case are next to each other, so prefixes can be matched either way
+	private static final Comparator<String> NAME_ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+	
 	private final BinaryRandomAccess source;
+	private final BlockAllocator allocator;
+	
+	//Entries are read with positional reads that share no state, so any number of threads can read at once
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
-	private final LinkedHashMap<String, ArchiveEntry> entries = new LinkedHashMap<>();
-	private final ArrayList<StorageList> storage = new ArrayList<>();
+	private final EntryTable entries;
+	private TreeSet<String> names;
 	
 	private final boolean readOnly;
 	
 	private long cdPos;
 	private long eocdPos;
-	private long totalSize;
+	
+	private boolean batch;
+	private boolean batchModified;
+	
+	private int alignment = 1;
+	
+	private final HashMap<String, Integer> rewriteCounts = new HashMap<>();
+	private int hotThreshold = 3;
+	
+	private final HashMap<Long, Integer> blockReferences = new HashMap<>();
+	private final HashMap<Payload, ArchiveEntry> payloads = new HashMap<>();
+	private boolean deduplicate;
+	
+	//Blocks freed while snapshots or streams are open, in the order they were freed
+	private final ArrayDeque<QuarantinedBlock> quarantine = new ArrayDeque<>();
+	private final TreeSet<Long> openSnapshots = new TreeSet<>();
+	private long snapshotEpoch;
+	
+	private File journalFile;
+	private ArchiveJournal journal;
+	private boolean changePending;
 	
 	
 	public ZipArchive(RandomAccessFile zipFile) throws IOException{
@@ -43,24 +91,118 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 	public ZipArchive(RandomAccessFile zipFile, boolean readOnly) throws IOException{
 		
 		source = new BinaryRandomAccess(zipFile);
+		allocator = new BuddyAllocator();
+		entries = readOnly ? new DirectoryEntryTable() : new LinkedEntryTable();
 		this.readOnly = readOnly;
 		init();
 	}
 	
 	
+	/**
+	 * Opens an archive for writing, using the specified allocator to decide where
+	 * entries are stored. The allocator must not be shared with another archive.
+	 */
+	public ZipArchive(RandomAccessFile zipFile, BlockAllocator allocator) throws IOException{
+		
+		source = new BinaryRandomAccess(zipFile);
+		this.allocator = allocator;
+		entries = new LinkedEntryTable();
+		readOnly = false;
+		init();
+	}
+	
+	
 	public ZipArchive(File zipFile) throws IOException {		
 
 		this(zipFile, false);
 	}
 	
 	
+	/**
+	 * Opens an archive. In read only mode the listings in the central directory are
+	 * only decoded as entries are looked up or iterated over, so reading a few entries
+	 * from a large archive doesn't require decoding all of them.
+	 */
 	public ZipArchive(File zipFile, boolean readOnly) throws IOException {
+
+		this(zipFile, readOnly, readOnly ? new DirectoryEntryTable() : new LinkedEntryTable());
+	}
+	
+	
+	/**
+	 * Opens an archive, keeping its entries in the specified table. A
+	 * {@link CompactEntryTable} lets archives with a very large number of entries be
+	 * opened with a small heap. The table must be empty and must not be shared with
+	 * another archive.
+	 */
+	public ZipArchive(File zipFile, boolean readOnly, EntryTable entries) throws IOException {
 		
 		if(readOnly)
 			source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "r"));
 		else
 			source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "rw"));
 		
+		allocator = new BuddyAllocator();
+		this.entries = entries;
+		this.readOnly = readOnly;
+		journalFile = getJournalFile(zipFile);
+		
+		try {
+			
+			init();			
+		}catch(IOException e) {
+			
+			source.close();			
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Opens an archive for writing, using the specified allocator to decide where
+	 * entries are stored. The allocator must not be shared with another archive.
+	 * <p>
+	 * Entries are only moved when opening if the allocator cannot claim the space
+	 * they already occupy. An {@link ExtentAllocator} can claim any free range, so
+	 * opening with one is a fast open: the existing layout is recorded as allocated
+	 * extents, the gaps between them become free space, and neither the entries nor
+	 * the central directory are rewritten.
+	 */
+	public ZipArchive(File zipFile, BlockAllocator allocator) throws IOException {
+		
+		this(zipFile, allocator, new LinkedEntryTable());
+	}
+	
+	
+	/**
+	 * Opens an archive for writing, using the specified allocator to decide where
+	 * entries are stored and the specified table to keep them in. Neither may be
+	 * shared with another archive, and the table must be empty.
+	 */
+	public ZipArchive(File zipFile, BlockAllocator allocator, EntryTable entries) throws IOException {
+		
+		source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "rw"));
+		this.allocator = allocator;
+		this.entries = entries;
+		readOnly = false;
+		journalFile = getJournalFile(zipFile);
+		
+		try {
+			
+			init();			
+		}catch(IOException e) {
+			
+			source.close();			
+			throw e;
+		}
+	}
+	
+	
+	private ZipArchive(BinaryRandomAccess source, BlockAllocator allocator, EntryTable entries, boolean readOnly) throws IOException {
+		
+		this.source = source;
+		this.allocator = allocator;
+		this.entries = entries;
 		this.readOnly = readOnly;
 		
 		try {
@@ -74,6 +216,110 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 	}
 	
 	
+	/**
+	 * Opens an archive in read only mode with the whole file memory mapped, so that
+	 * entries are read straight from the page cache rather than through a read call
+	 * each. The mapping is only released once the archive has been garbage
+	 * collected, and some systems won't let a mapped file be deleted or replaced
+	 * until then, so this is best suited to reading or checking an archive that
+	 * nothing else is going to touch.
+	 * @param zipFile The archive to open.
+	 * @return The opened archive.
+	 * @throws IOException If the file can't be mapped or isn't a valid archive.
+	 */
+	public static ZipArchive openMapped(File zipFile) throws IOException {
+		
+		BinaryRandomAccess source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "r"));
+		try {
+			
+			source.map();
+		}catch(IOException e) {
+			
+			source.close();
+			throw e;
+		}
+		
+		return new ZipArchive(source, new BuddyAllocator(), new DirectoryEntryTable(), true);
+	}
+	
+	
+	/**
+	 * Creates an empty archive held entirely in memory, outside of the heap. Nothing
+	 * is written to disk until {@link #publishTo(Path)} is called, so building an
+	 * archive this way never leaves a half written file for anything else to read.
+	 * The archive can't grow past two gigabytes.
+	 * @return The new archive.
+	 */
+	public static ZipArchive inMemory() {
+		
+		return inMemory(new BuddyAllocator());
+	}
+	
+	
+	/**
+	 * Creates an empty archive held entirely in memory, using the specified allocator
+	 * to decide where entries are stored. The allocator must not be shared with
+	 * another archive.
+	 * @see #inMemory()
+	 */
+	public static ZipArchive inMemory(BlockAllocator allocator) {
+		
+		try {
+			
+			return new ZipArchive(new BinaryRandomAccess(new MemoryChannel()), allocator, new LinkedEntryTable(), false);
+		}catch(IOException e) {
+			
+			throw new IllegalStateException(e); //Nothing in memory can fail to be read or written
+		}
+	}
+	
+	
+	/**
+	 * Rebuilds the central directory of an archive that can no longer be opened,
+	 * because its central directory or end of central directory record is missing
+	 * or damaged. The file is split into ranges that are scanned for local headers
+	 * at the same time, and every entry found whose data matches its checksum is
+	 * listed in a new central directory written at the end of the file. Nothing
+	 * already in the file is overwritten, and no entry is moved.
+	 * <p>
+	 * Space freed by removing or replacing entries keeps its old data until it is
+	 * reused, so entries that were removed may be listed again. Where more than one
+	 * entry has the same name, the one modified last is kept. Modification times are
+	 * only kept to two seconds, so when copies of different data tie, the one listed
+	 * by the last central directory written is kept, if that directory survived. If
+	 * that doesn't settle it, the copy furthest into the file is kept and its name is
+	 * reported. Any journal beside the archive is deleted, since the directory it
+	 * records is no longer the archive's.
+	 * @param zipFile The archive to salvage.
+	 * @param threads The number of threads to scan the file with.
+	 * @return The number of entries listed in the new central directory, and the
+	 * names of those whose copy had to be guessed.
+	 * @throws IOException If an error is encountered while reading or writing the file.
+	 */
+	public static SalvageReport salvage(File zipFile, int threads) throws IOException {
+		
+		try(BinaryRandomAccess source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "rw"))){
+			
+			LocalHeaderScanner scanner = new LocalHeaderScanner(source);
+			List<ArchiveEntry> found = scanner.scan(threads);
+			long cdPos = source.length();
+			BinaryWriter directory = new BinaryWriter();
+			for(ArchiveEntry entry: found) {
+				
+				entry.setDirectoryOffset(directory.getPosition());
+				entry.writeDirectoryListing(directory, entry.getHeaderPosition());
+			}
+			
+			writeEOCD(directory, found.size(), cdPos, directory.getPosition());
+			source.write(cdPos, directory.getRawData(), 0, directory.getPosition());
+			source.force();
+			
+			Files.deleteIfExists(getJournalFile(zipFile).toPath());
+			return new SalvageReport(found.size(), scanner.getAmbiguousNames());
+		}
+	}
+	
+	
 	public ZipArchive(String zipFile) throws IOException {
 		
 		this(zipFile, false);
@@ -87,7 +333,33 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 		else
 			source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "rw"));
 		
+		allocator = new BuddyAllocator();
+		entries = readOnly ? new DirectoryEntryTable() : new LinkedEntryTable();
 		this.readOnly = readOnly;
+		journalFile = getJournalFile(new File(zipFile));
+		
+		try {
+			
+			init();			
+		}catch(IOException e) {
+			
+			source.close();			
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Opens an archive for writing, using the specified allocator to decide where
+	 * entries are stored. The allocator must not be shared with another archive.
+	 */
+	public ZipArchive(String zipFile, BlockAllocator allocator) throws IOException {
+		
+		source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "rw"));
+		this.allocator = allocator;
+		entries = new LinkedEntryTable();
+		readOnly = false;
+		journalFile = getJournalFile(new File(zipFile));
 		
 		try {
 			
@@ -102,6 +374,10 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 	
 	private void init() throws IOException {
 		
+		//A change that was cut short is finished or undone before anything is read
+		if(!readOnly && journalFile != null)
+			ArchiveJournal.recover(journalFile, source);
+		
 		if(source.length() == 0) {
 			
 			if(readOnly)
@@ -113,345 +389,824 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 		}
 
 		source.seek(source.length() - EOCD_SIZE);		
-		readEOCD();
+		boolean directoryMatches = readEOCD();
 		
 		if(readOnly)
 			return;
 		
-		PriorityQueue<ArchiveEntry> assignOrder = new PriorityQueue<>((a, b) -> (int) (a.getHeaderPosition() - b.getHeaderPosition()));
-		for(ArchiveEntry entry: entries.values())
-			assignOrder.add(entry);
-
+		//Only primitive arrays are kept for every entry, so that tables holding views don't need one for each
+		int count = entries.size();
+		long[] positions = new long[count];
+		long[] compressedSizes = new long[count];
+		int[] headerSizes = new int[count];
+		int[] minimumHeaderSizes = new int[count];
+		int index = 0;
+		for(ArchiveEntry entry: entries) {
+			
+			positions[index] = entry.getHeaderPosition();
+			compressedSizes[index] = entry.compressedSize;
+			headerSizes[index] = (int) entry.getHeaderSize();
+			minimumHeaderSizes[index] = ArchiveEntry.getLocalHeaderSize(entry.name, entry.compressedSize, entry.uncompressedSize);
+			++index;
+		}
+		
+		//Each entry is assigned a block in order of position, and its new position is stored in place of its old one
+		int[] order = sortByPosition(positions);
+		BitSet shared = new BitSet(count);
+		boolean headersRead = false;
+		boolean moved = false;
 		long newCdPos = 0;
 		long currentPosition = 0;
-		PriorityQueue<EntryLayout> archiveLayout = new PriorityQueue<>();
-		while(!assignOrder.isEmpty()) {
-
-			ArchiveEntry entry = assignOrder.poll();
-
-			if(storage.isEmpty()) {
-				
-				byte b = getSize(entry.getTotalSize());
-				byte listSize = (byte) (b - MINIMUM_BLOCK_SIZE);
-				while(storage.size() < listSize)
-					storage.add(new StorageList());
-				
-				StorageList list = new StorageList();
-				list.add(new StorageBlock(0, b));
-				totalSize += 1 << b;
-				list.add(new StorageBlock(totalSize, b));
-				totalSize += 1 << b;
-				storage.add(list);
+		long previousPosition = -1;
+		for(int i = 0; i < count; ++i) {
+			
+			int listing = order[i];
+			long position = positions[listing];
+			
+			//Entries that share their data with the previous entry go wherever it goes
+			if(position == previousPosition) {
+				
+				int previous = order[i - 1];
+				positions[listing] = positions[previous];
+				headerSizes[listing] = headerSizes[previous];
+				shared.set(listing);
+				shareBlock(positions[listing]);
+				moved |= positions[listing] != position;
+				continue;
 			}
 			
-			if(entry.getHeaderPosition() >= currentPosition) {
-				int positionMask = (1 << getSize(entry.getTotalSize())) - 1;
-				if((entry.getHeaderPosition() & positionMask) == 0) {
+			previousPosition = position;
+			long size = compressedSizes[listing] + headerSizes[listing];
+			long end = position + size;
+			if(headerSizes[listing] < 0) {
+				
+				//The entry ends by the start of the next one or the directory, so if the smallest block it could take reaches that far, it takes that block
+				int next = i + 1;
+				while(next < count && positions[order[next]] == position)
+					++next;
+				
+				end = next < count ? positions[order[next]] : cdPos;
+				size = compressedSizes[listing] + minimumHeaderSizes[listing];
+				if(end - position < size || end - position > allocator.getBlockSize(size)) {
 					
-					getBlock(entry.getTotalSize(), entry.getHeaderPosition());
-					archiveLayout.add(new EntryLayout(entry, entry.getHeaderPosition()));
-					long position = entry.getHeaderPosition() + entry.getTotalSize();
-					currentPosition = position;
-					if(position > newCdPos)
-						newCdPos = position;
+					headerSizes[listing] = ArchiveEntry.readHeaderSize(source, position);
+					headersRead = true;
+					size = compressedSizes[listing] + headerSizes[listing];
+					end = position + size;
+				}
+			}
+			
+			if(position < currentPosition || !allocator.getBlock(size, position)) {
+				
+				//Only an entry whose header has been read knows how much to move
+				if(headerSizes[listing] < 0) {
 					
-					continue;
+					headerSizes[listing] = ArchiveEntry.readHeaderSize(source, position);
+					headersRead = true;
+					size = compressedSizes[listing] + headerSizes[listing];
 				}
+				
+				positions[listing] = allocator.getBlockAfter(size, currentPosition);
+				end = positions[listing] + size;
+				moved = true;
 			}
 			
-			long position = getBlockAfter(entry.getTotalSize(), currentPosition);
-
-			archiveLayout.add(new EntryLayout(entry, position));
-			position += entry.getTotalSize();
-			currentPosition = position;
-			if(position > newCdPos)
-				newCdPos = position;
+			currentPosition = end;
+			if(currentPosition > newCdPos)
+				newCdPos = currentPosition;
+		}
+		
+		//Views are only created for the entries that have to be moved
+		ArrayList<EntryLayout> layouts = new ArrayList<>();
+		if(moved || headersRead) {
+			
+			index = 0;
+			for(ArchiveEntry entry: entries) {
+				
+				if(entry.getHeaderSize() < 0 && headerSizes[index] >= 0) {
+					
+					entry.setHeaderSize(headerSizes[index]);
+					entries.update(entry);
+				}
+				
+				if(positions[index] != entry.getHeaderPosition()) {
+					
+					if(shared.get(index))
+						entry.setHeaderPosition(positions[index]);
+					else
+						layouts.add(new EntryLayout(entry, positions[index]));
+				}
+				
+				++index;
+			}
+		}
+		
+		//Entries moving up are moved highest first and entries moving down lowest first, so none is written over before it's moved
+		Collections.sort(layouts);
+		for(int i = layouts.size() - 1; i >= 0; --i) {
+			
+			EntryLayout layout = layouts.get(i);
+			if(layout.position < layout.entry.getHeaderPosition())
+				layout.entry.moveTo(layout.position, source);
 		}
 		
-		boolean moveCD = newCdPos != cdPos;
-		while(!archiveLayout.isEmpty()) {
+		for(EntryLayout layout: layouts) {
 			
-			EntryLayout layout = archiveLayout.poll();
-			layout.entry.moveTo(layout.position, source);
+			if(layout.position > layout.entry.getHeaderPosition())
+				layout.entry.moveTo(layout.position, source);
 		}
 		
+		//If every entry was kept where it was, the directory can stay where it is
+		if(!moved && directoryMatches && newCdPos <= cdPos)
+			return;
+		
 		writeCD(newCdPos);
-		if(moveCD)
-			writeEOCD();
+		writeEOCD();
 		
 		source.flush();
 	}
 	
 	
-	private void increaseStorage(byte b) throws IOException {
+	/**
+	 * Sorts the indices of the specified positions by position, without boxing them.
+	 * Indices of equal positions keep their order.
+	 * @return The indices, lowest position first.
+	 */
+	private static int[] sortByPosition(long[] positions) {
 		
-		while(storage.size() <= b) {
-			
-			StorageList list = new StorageList();
+		int count = positions.length;
+		int[] order = new int[count];
+		int[] merged = new int[count];
+		for(int i = 0; i < count; ++i)
+			order[i] = i;
+		
+		for(int width = 1; width < count; width <<= 1) {
 			
-			if(!entries.isEmpty() || storage.size() == b) {
+			for(int start = 0; start < count; start += width << 1) {
 				
-				long size = 1 << (MINIMUM_BLOCK_SIZE + storage.size());
-				list.add(new StorageBlock(totalSize, (byte) (storage.size() + MINIMUM_BLOCK_SIZE)));
-				
-				if(entries.isEmpty()) {
-
-					list.add(new StorageBlock(totalSize + size, (byte) (storage.size() + MINIMUM_BLOCK_SIZE)));
-					size += size;
+				int middle = Math.min(start + width, count);
+				int end = Math.min(start + (width << 1), count);
+				int left = start;
+				int right = middle;
+				for(int i = start; i < end; ++i) {
+					
+					if(right >= end || (left < middle && positions[order[left]] <= positions[order[right]]))
+						merged[i] = order[left++];
+					else
+						merged[i] = order[right++];
 				}
-				
-				totalSize += size;
 			}
 			
-			storage.add(list);
+			int[] sorted = merged;
+			merged = order;
+			order = sorted;
 		}
+		
+		return order;
 	}
 	
 	
-	private long getBlock(long size) throws IOException {
-		
-		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
-		
-		if(b >= storage.size())
-			increaseStorage(b);
-		
-		StorageList list = storage.get(b);
-		if(list.isEmpty())
-			splitBlock(b);
+	/**
+	 * Sets the alignment of the data of entries stored without compression that are
+	 * written to this archive from now on. The local header of each such entry is
+	 * padded so that its data starts at a multiple of the alignment, which lets the
+	 * data be memory mapped directly. Entries that are already written, and entries
+	 * that are moved when the archive is opened, are not aligned again.
+	 * @param alignment The alignment in bytes, a power of two no greater than 32768,
+	 * such as 4 or 4096. An alignment of 1 disables padding.
+	 */
+	public void setAlignment(int alignment) {
 		
-		StorageBlock block = list.remove();		
-		return block.position;
+		lock.writeLock().lock();
+		try {
+			
+			if(alignment < 1 || alignment > 32768 || (alignment & (alignment - 1)) != 0)
+				throw new IllegalArgumentException("Alignment must be a power of two no greater than 32768");
+			
+			this.alignment = alignment;
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
 	}
 	
 	
-	private void getBlock(long size, long position) throws IOException {
-		
-		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
-		
-		if(b >= storage.size())
-			increaseStorage(b);
-		
-		StorageList list = storage.get(b);
-		if(list.remove(position) != null)
-			return;
+	public int getAlignment() {
 		
-		splitBlock(b, position);		
-		list.remove(position);
+		return alignment;
 	}
 	
 	
-	private long getBlockAfter(long size, long after) throws IOException {
-		
-		byte b = (byte) (getSize(size) - MINIMUM_BLOCK_SIZE);
-		
-		if(b >= storage.size())
-			increaseStorage(b);
-		
-		StorageList list = storage.get(b);
-		StorageBlock block = list.removeAfter(after);
-		if(block == null)
-			splitBlockAfter(b, after);
-		else
-			return block.position;
+	/**
+	 * Sets how many times an entry has to be rewritten while this archive is open
+	 * before it is considered hot. Hot entries that have to be moved are placed near
+	 * the end of the archive, next to the central directory, so that entries that
+	 * change constantly don't break up the space used by the entries that don't.
+	 * @param hotThreshold The number of rewrites, or 0 to place every entry the same way.
+	 */
+	public void setHotThreshold(int hotThreshold) {
 		
-		return list.removeAfter(after).position;
+		lock.writeLock().lock();
+		try {
+			
+			if(hotThreshold < 0)
+				throw new IllegalArgumentException("Threshold must not be negative");
+			
+			this.hotThreshold = hotThreshold;
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
 	}
 	
 	
-	private void freeBlock(long position, long size) {
-				
-		byte b = getSize(size);		
-		StorageBlock block = new StorageBlock(position, b);
+	/**
+	 * @return The number of times the entry with the specified name has been replaced,
+	 * or removed and added again, since this archive was opened.
+	 */
+	public int getRewriteCount(String name) {
 		
-		b -= MINIMUM_BLOCK_SIZE;		
-		while(b >= storage.size())
-			storage.add(new StorageList());
+		lock.readLock().lock();
+		try {
+			
+			return rewriteCounts.getOrDefault(name, 0);
+		}finally {
+			
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	private boolean isHot(String name) {
 		
-		while(true) {
+		return hotThreshold > 0 && getRewriteCount(name) >= hotThreshold;
+	}
+	
+	
+	/**
+	 * Enables or disables the journal. While it is enabled, the state of the archive
+	 * before and after each change is recorded in a small file beside it, named
+	 * after the archive with ".journal" appended, so that if the program dies part way
+	 * through a change the archive is put back into a valid state the next time it is
+	 * opened for writing. Changes take longer with the journal, since the archive and
+	 * the journal are both forced to disk before each central directory is written,
+	 * and entries are never replaced in place.
+	 * @param journaled True to enable the journal.
+	 * @throws IOException If the journal can't be created or deleted.
+	 * @throws IllegalStateException If a batch is open, or the archive wasn't opened
+	 * from a file.
+	 */
+	public void setJournaled(boolean journaled) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
 			
-			StorageList list = storage.get(b);
-			StorageBlock buddy = list.getBuddy(block);
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			if(journalFile == null)
+				throw new IllegalStateException("Only archives opened from a file can be journaled");
+			
+			if(batch)
+				throw new IllegalStateException("Cannot change the journal while a batch is open");
+			
+			if(journaled == (journal != null))
+				return;
 			
-			if(buddy == null) {
+			if(journaled) {
 				
-				list.add(block);
+				journal = new ArchiveJournal(journalFile);
 				return;
 			}
 			
-			if(buddy.position < block.position)
-				block = buddy;
+			//A change left unfinished by an error is finished before the journal is dropped
+			if(changePending)
+				writeDirectory(getEndOfEntries());
 			
-			++block.size;
-			++b;
+			journal.close(false);
+			journal = null;
+		}finally {
 			
-			if(b >= storage.size())
-				storage.add(new StorageList());
+			lock.writeLock().unlock();
 		}
 	}
 	
 	
-	private void splitBlock(byte targetSize) throws IOException {
-		
-		byte i = (byte) (targetSize + 1);
-				
-		while(i < storage.size() && storage.get(i).isEmpty())
-			++i;
-		
-		if(i >= storage.size()) 
-			increaseStorage(i);
+	/**
+	 * @return True if the journal is enabled.
+	 */
+	public boolean isJournaled() {
 		
-		while(i > targetSize) {
-
-			StorageBlock block = storage.get(i--).remove();
-			storage.get(i).add(block.split());
-			storage.get(i).add(block);
-		}
+		return journal != null;
 	}
 	
 	
-	private void splitBlock(byte targetSize, long position) throws IOException {
+	/**
+	 * @return The file the journal of the specified archive is kept in.
+	 */
+	public static File getJournalFile(File zipFile) {
 		
-		byte i = (byte) (targetSize + 1);
-
-		byte bit = (byte) (i + MINIMUM_BLOCK_SIZE);
-		while(i < storage.size() && !storage.get(i).hasBlock(position & ~((1 << bit) - 1))) {
-			++i;
-			++bit;
-		}
+		return new File(zipFile.getPath() + ".journal");
+	}
+	
+	
+	/**
+	 * Puts an archive left behind by a journaled change that was cut short back into
+	 * a valid state, without opening it. Opening an archive for writing does this
+	 * itself, but an archive opened read only is read as it is, so this has to be
+	 * called first by anything that only reads an archive that may have a journal.
+	 * @param zipFile The archive to recover.
+	 * @return True if the archive had a journal that was used to recover it.
+	 * @throws IOException If an error is encountered while writing the archive.
+	 */
+	public static boolean recover(File zipFile) throws IOException {
 		
-		if(i == storage.size())
-			increaseStorage(i);
+		File journalFile = getJournalFile(zipFile);
+		if(!journalFile.exists())
+			return false;
 		
-		while(i > targetSize) {
-
-			StorageBlock block = storage.get(i--).remove(position & ~((1 << bit) - 1));
-			storage.get(i).add(block.split());
-			storage.get(i).add(block);
-			bit--;
+		try(BinaryRandomAccess source = new BinaryRandomAccess(new RandomAccessFile(zipFile, "rw"))){
+			
+			return ArchiveJournal.recover(journalFile, source);
 		}
 	}
 	
 	
-	private void splitBlockAfter(byte targetSize, long after) throws IOException {
+	/**
+	 * Sets whether entries added to this archive are checked against the entries that
+	 * are already in it. An entry whose compressed data is
+	 * identical to one of those is not stored again. Instead its listing in the central
+	 * directory points at the existing data, so the data is only freed once every
+	 * entry using it is removed. The shared local header keeps the name of the first
+	 * entry, which some zip tools will warn about.
+	 * @param deduplicate True to store identical data once, false to store every entry.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
 		
-		byte i = (byte) (targetSize + 1);
+		lock.writeLock().lock();
+		try {
+			
+			if(deduplicate && !this.deduplicate) {
 				
-		while(i < storage.size() && !storage.get(i).hasAfter(after))
-			++i;
-		
-		if(i >= storage.size()) 
-			increaseStorage(i);
-		
-		while(i > targetSize) {
-
-			StorageBlock block = storage.get(i--).removeAfter(after);
-			storage.get(i).add(block.split());
-			storage.get(i).add(block);
+				payloads.clear();
+				for(ArchiveEntry entry: entries)
+					payloads.putIfAbsent(new Payload(entry.crc32, entry.compressedSize, entry.uncompressedSize, entry.compressionType), entry);
+			}
+			
+			this.deduplicate = deduplicate;
+		}finally {
+			
+			lock.writeLock().unlock();
 		}
 	}
 	
 	
 	public int entryCount() {
 		
-		return entries.size();
+		lock.readLock().lock();
+		try {
+			
+			return entries.size();
+		}finally {
+			
+			lock.readLock().unlock();
+		}
 	}
 	
 	
 	public boolean containsEntry(String name) {
 		
-		return entries.containsKey(name);
+		lock.readLock().lock();
+		try {
+			
+			return entries.containsName(name);
+		}finally {
+			
+			lock.readLock().unlock();
+		}
 	}
 	
 	
 	public ArchiveEntry getEntry(String name) {
 		
-		return entries.get(name);
+		lock.readLock().lock();
+		try {
+			
+			return entries.get(name);
+		}finally {
+			
+			lock.readLock().unlock();
+		}
 	}
 	
 	
-	public byte[] extract(ArchiveEntry entry) throws IOException {
+	/**
+	 * Finds an entry by name, ignoring the case of the name.
+	 * @param name The name of the entry.
+	 * @return The entry with the specified name if there is one, otherwise the first
+	 * entry whose name differs from it only in case, or null if there is none.
+	 */
+	public ArchiveEntry getEntryIgnoreCase(String name) {
 		
-		return entry.extract(source);
+		lock.readLock().lock();
+		try {
+			
+			ArchiveEntry entry = entries.get(name);
+			if(entry != null)
+				return entry;
+			
+			String match = getNames().ceiling(getFirstName(name));
+			if(match == null || !match.equalsIgnoreCase(name))
+				return null;
+			
+			return entries.get(match);
+		}finally {
+			
+			lock.readLock().unlock();
+		}
 	}
 	
 	
-	public byte[] getCompressedData(ArchiveEntry entry) throws IOException {
+	/**
+	 * Lists the entries whose names start with the specified prefix, such as every
+	 * entry in a folder. Names are kept sorted once this is first called, so listing
+	 * a folder only takes as long as finding its first entry.
+	 * @param prefix The start of the names of the entries, for example "sprites/".
+	 * @return The matching entries in order of their names.
+	 */
+	public List<ArchiveEntry> list(String prefix) {
 		
-		return entry.getCompressedData(source);
+		return list(prefix, false);
 	}
 	
 	
-	public void remove(String name) throws IOException {
-		
-		if(readOnly)
-			throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+	/**
+	 * Lists the entries whose names start with the specified prefix.
+	 * @param prefix The start of the names of the entries, for example "sprites/".
+	 * @param ignoreCase True if the case of the prefix should be ignored.
+	 * @return The matching entries in order of their names.
+	 */
+	public List<ArchiveEntry> list(String prefix, boolean ignoreCase) {
 		
-		remove(entries.get(name));
+		lock.readLock().lock();
+		try {
+			
+			ArrayList<ArchiveEntry> result = new ArrayList<>();
+			for(String name: getNames().tailSet(getFirstName(prefix))) {
+				
+				if(!name.regionMatches(true, 0, prefix, 0, prefix.length()))
+					break;
+				
+				if(ignoreCase || name.startsWith(prefix))
+					result.add(entries.get(name));
+			}
+			
+			return result;
+		}finally {
+			
+			lock.readLock().unlock();
+		}
 	}
 	
 	
-	public void remove(ArchiveEntry entry) throws IOException {
-		
-		if(readOnly)
-			throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
-
-		if(!entries.remove(entry.name, entry))
-			throw new IOException("Entry \"" + entry.name + "\" does not exist in this archive");
-		
-		freeBlock(entry.getHeaderPosition(), entry.getTotalSize());
-		long newCDPos = removeFromCD(entry);
+	/**
+	 * @return The sorted names of every entry, which are only collected the first time
+	 * they're needed and kept up to date from then on.
+	 */
+	private synchronized TreeSet<String> getNames() {
 		
-		writeCD(newCDPos);
-		writeEOCD();
+		if(names == null) {
+			
+			names = new TreeSet<>(NAME_ORDER);
+			for(ArchiveEntry entry: entries)
+				names.add(entry.name);
+		}
 		
-		source.flush();
+		return names;
 	}
 	
 	
-	public void removeAll(Collection<ArchiveEntry> entries) throws IOException {
-		
-		if(readOnly)
-			throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+	/**
+	 * @return The first name in the sorted names that could start with the specified
+	 * prefix, ignoring case.
+	 */
+	private String getFirstName(String prefix) {
 		
-		long finalPosition = cdPos;
+		String first = prefix;
+		for(String lower = names.lower(prefix); lower != null && lower.equalsIgnoreCase(prefix); lower = names.lower(lower))
+			first = lower;
 		
-		for(ArchiveEntry entry: entries) {
+		return first;
+	}
 	
-			if(!this.entries.remove(entry.name, entry))
-				throw new IOException("Entry does not exist in this archive");
-			
-			freeBlock(entry.getHeaderPosition(), entry.getTotalSize());
-			long newCDPos = removeFromCD(entry);
-			if(newCDPos < finalPosition)
-				finalPosition = newCDPos;
-		}
 	
-		writeCD(finalPosition);
-		writeEOCD();
+	private void putEntry(ArchiveEntry entry) {
 		
-		source.flush();
+		entries.put(entry);
+		if(names != null)
+			names.add(entry.name);
 	}
 	
 	
-	private long removeFromCD(ArchiveEntry entry) throws IOException {
+	private boolean removeEntry(ArchiveEntry entry) {
 		
-		long newCDPos = 0;
-		long directoryOffset = entry.getDirectoryOffset();
-		long directorySize = 46 + entry.name.length();
+		if(!entries.remove(entry))
+			return false;
 		
-		for(ArchiveEntry e: entries.values()) {
-			
-			if(e.getDirectoryOffset() > directoryOffset)
-				e.moveDirectoryOffset(-directorySize);
+		if(names != null)
+			names.remove(entry.name);
+		
+		return true;
+	}
+	
+	
+	public byte[] extract(ArchiveEntry entry) throws IOException {
+		
+		lock.readLock().lock();
+		try {
+			
+			return entry.extract(source);
+		}finally {
 			
-			long endOfEntry = e.getHeaderPosition() + e.getTotalSize();
-			if(endOfEntry > newCDPos)
-				newCDPos = endOfEntry;
+			lock.readLock().unlock();
 		}
+	}
+	
+	
+	/**
+	 * Checks an entry's data against its checksum without extracting it, which takes
+	 * a small, fixed amount of memory however large the entry is.
+	 * @param entry The entry to check.
+	 * @throws IOException If the entry is corrupt, or an error occurs while reading it.
+	 */
+	public void verify(ArchiveEntry entry) throws IOException {
 		
+		lock.readLock().lock();
+		try {
 			
-		eocdPos -= directorySize;
-		return newCDPos;
+			entry.verify(source);
+		}finally {
+			
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Opens a stream over an entry's uncompressed data, which is inflated a chunk at
+	 * a time as it is read, so that large entries can be copied out in a small, fixed
+	 * amount of memory. Like a snapshot, the stream keeps the entry's data in place
+	 * until it is closed, so the archive can be changed while it is being read.
+	 * @param entry The entry to read.
+	 * @return A stream that also serves as a channel over the entry's data.
+	 * @throws IOException If the entry isn't in this archive, or an error occurs while
+	 * reading its header.
+	 */
+	public EntryInputStream openStream(ArchiveEntry entry) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(!entries.contains(entry))
+				throw new IOException("Entry \"" + entry.name + "\" does not exist in this archive");
+			
+			//The stream reads the file directly, so everything it can see has to be in it
+			source.flush();
+			entry.readLocalHeader(source);
+			long epoch = ++snapshotEpoch;
+			EntryInputStream stream = new EntryInputStream(entry, source.reader(), this, epoch);
+			openSnapshots.add(epoch);
+			return stream;
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	public byte[] getCompressedData(ArchiveEntry entry) throws IOException {
+		
+		lock.readLock().lock();
+		try {
+			
+			return entry.getCompressedData(source);
+		}finally {
+			
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	public void remove(String name) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			ArchiveEntry entry = entries.get(name);
+			if(entry == null)
+				throw new IOException("Entry \"" + name + "\" does not exist in this archive");
+			
+			remove(entry);
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	public void remove(ArchiveEntry entry) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+
+			//Nothing may be written to the journal for an entry that can't be removed
+			if(!entries.contains(entry))
+				throw new IOException("Entry \"" + entry.name + "\" does not exist in this archive");
+			
+			beginChange();
+			removeEntry(entry);
+			rewriteCounts.putIfAbsent(entry.name, 0);
+			releaseBlock(entry);
+			allocator.trim();
+			
+			if(deferDirectory())
+				return;
+			
+			writeDirectory(getEndOfEntries());
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	public void removeAll(Collection<ArchiveEntry> entries) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			for(ArchiveEntry entry: entries)
+				if(!this.entries.contains(entry))
+					throw new IOException("Entry \"" + entry.name + "\" does not exist in this archive");
+			
+			beginChange();
+			for(ArchiveEntry entry: entries) {
+		
+				if(!removeEntry(entry))
+					throw new IOException("Entry \"" + entry.name + "\" does not exist in this archive");
+				
+				rewriteCounts.putIfAbsent(entry.name, 0);
+				releaseBlock(entry);
+			}
+			
+			//Directory offsets are laid out again when the directory is written, so only the end needs finding
+			allocator.trim();
+			if(deferDirectory())
+				return;
+			
+			writeDirectory(getEndOfEntries());
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Removes every entry whose name starts with the specified prefix, such as every
+	 * entry in a folder.
+	 * @param prefix The start of the names of the entries to remove, for example "sprites/".
+	 * @return The number of entries removed.
+	 * @throws IOException If an error occurs while updating the central directory.
+	 */
+	public int removeByPrefix(String prefix) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			List<ArchiveEntry> removed = list(prefix);
+			if(!removed.isEmpty())
+				removeAll(removed);
+			
+			return removed.size();
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Starts a batch of changes. Until {@link #commit()} is called, adding, replacing
+	 * and removing entries only writes their data, and the central directory is
+	 * written once when the batch is committed rather than after every change. The
+	 * archive is not a valid zip file on disk while a batch is open.
+	 * @throws IllegalStateException If a batch is already open.
+	 */
+	public void beginBatch() {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			if(batch)
+				throw new IllegalStateException("A batch is already open");
+			
+			batch = true;
+			batchModified = false;
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Ends the current batch, writing the central directory if anything was changed
+	 * since {@link #beginBatch()} was called.
+	 * @throws IllegalStateException If no batch is open.
+	 * @throws IOException If an error occurs while writing the central directory.
+	 */
+	public void commit() throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(!batch)
+				throw new IllegalStateException("No batch is open");
+			
+			batch = false;
+			if(!batchModified)
+				return;
+			
+			writeDirectory(getEndOfEntries());
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * @return True if the central directory should not be written yet because a
+	 * batch is open, in which case the batch is marked as modified.
+	 */
+	private boolean deferDirectory() {
+		
+		if(batch)
+			batchModified = true;
+		
+		return batch;
+	}
+	
+	
+	private long getEndOfEntries() throws IOException {
+		
+		long endOfEntries = 0;
+		for(ArchiveEntry entry: entries) {
+			
+			long endOfEntry = entry.getHeaderPosition() + entry.compressedSize;
+			if(entry.getHeaderSize() >= 0)
+				endOfEntry += entry.getHeaderSize();
+			else
+				endOfEntry += ArchiveEntry.getLocalHeaderSize(entry.name, entry.compressedSize, entry.uncompressedSize);
+			
+			if(endOfEntry > endOfEntries)
+				endOfEntries = endOfEntry;
+		}
+		
+		//Headers that haven't been read are only read if their extra field, of up to 65535 bytes, could reach past every other entry
+		for(ArchiveEntry entry: entries) {
+			
+			if(entry.getHeaderSize() >= 0 || entry.getHeaderPosition() + entry.compressedSize + 30 + entry.name.length() + 65535 <= endOfEntries)
+				continue;
+			
+			entry.readLocalHeader(source);
+			long endOfEntry = entry.getHeaderPosition() + entry.getTotalSize();
+			if(endOfEntry > endOfEntries)
+				endOfEntries = endOfEntry;
+		}
+		
+		//The directory can't be written over data that snapshots may still read
+		for(QuarantinedBlock block: quarantine)
+			if(block.position + block.size > endOfEntries)
+				endOfEntries = block.position + block.size;
+		
+		return endOfEntries;
 	}
 	
 	
@@ -475,96 +1230,461 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 	
 	private ArchiveEntry createEntry(EntrySource entrySource) throws IOException{
 		
+		beginChange();
 		int uncompressedSize = entrySource.uncompressedSize;
 		CompressionInfo compress = entrySource.compress();
 		
-		source.seek(getBlock(compress.compressedSize + 30 + entrySource.entryName.length()));
+		Payload payload = null;
+		if(deduplicate) {
+			
+			payload = new Payload(compress.crc32, compress.compressedSize, uncompressedSize, compress.compressionType);
+			ArchiveEntry original = findDuplicate(payload, compress);
+			if(original != null) {
+				
+				ArchiveEntry entry = new ArchiveEntry(compress.compressionType, entrySource.lastModifiedTime, entrySource.lastModifiedDate, compress.crc32, compress.compressedSize, uncompressedSize, entrySource.entryName, original.getHeaderPosition(), eocdPos - cdPos);
+				entry.readLocalHeader(source);
+				shareBlock(original.getHeaderPosition());
+				putEntry(entry);
+				return entry;
+			}
+		}
+		
+		long size = compress.compressedSize + 30 + entrySource.entryName.length() + ArchiveEntry.getMaximumPadding(compress.compressionType, alignment);
+		
+		//Adding an entry that was removed earlier counts as rewriting it
+		if(rewriteCounts.containsKey(entrySource.entryName))
+			rewriteCounts.merge(entrySource.entryName, 1, Integer::sum);
+		
+		source.seek(isHot(entrySource.entryName) ? allocator.getHighBlock(size) : allocator.getBlock(size));
+		
+		ArchiveEntry entry = new ArchiveEntry(entrySource.entryName, compress.compressedData, entrySource.lastModifiedTime, entrySource.lastModifiedDate, compress.compressionType, eocdPos - cdPos, compress.crc32, compress.compressedSize, uncompressedSize, alignment, source);
+		releasePadding(entry, size);
+		putEntry(entry);
+		if(payload != null)
+			payloads.put(payload, entry);
 		
-		ArchiveEntry entry = new ArchiveEntry(entrySource.entryName, compress.compressedData, entrySource.lastModifiedTime, entrySource.lastModifiedDate, compress.compressionType, eocdPos - cdPos, compress.crc32, compress.compressedSize, uncompressedSize, source);
-		entries.put(entry.name, entry);
 		return entry;
 	}
 	
 	
-	private void writeCD(long position) throws IOException {
+	/**
+	 * @return An entry added to this archive that is still in it and whose compressed
+	 * data is identical to the specified data, or null if there is none.
+	 */
+	private ArchiveEntry findDuplicate(Payload payload, CompressionInfo compress) throws IOException {
+		
+		ArchiveEntry original = payloads.get(payload);
+		if(original == null || !entries.contains(original))
+			return null;
+		
+		//The key only narrows it down, the data itself has to match
+		byte[] data = original.getCompressedData(source);
+		for(int i = 0; i < data.length; ++i)
+			if(data[i] != compress.compressedData[i])
+				return null;
+		
+		return original;
+	}
+	
+	
+	private void shareBlock(long position) {
+		
+		blockReferences.merge(position, 2, (references, unused) -> references + 1);
+	}
+	
+	
+	/**
+	 * Frees the block holding an entry's data, unless another entry still refers to it.
+	 */
+	private void releaseBlock(ArchiveEntry entry) throws IOException {
 		
-		long dif = position - cdPos;
-		if(dif != 0) {
+		Integer references = blockReferences.get(entry.getHeaderPosition());
+		if(references == null) {
 			
-			cdPos += dif;
-			eocdPos += dif;
+			entry.readLocalHeader(source);
+			freeBlock(entry.getHeaderPosition(), entry.getTotalSize());
 		}
+		else if(references == 2)
+			blockReferences.remove(entry.getHeaderPosition());
+		else
+			blockReferences.put(entry.getHeaderPosition(), references - 1);
+	}
+	
+	
+	/**
+	 * Frees a block, or quarantines it if a snapshot or stream that is still open may read it.
+	 */
+	private void freeBlock(long position, long size) {
 		
-		for(ArchiveEntry entry: entries.values())
-			entry.writeDirectoryListing(cdPos, source);
+		if(keepFreedBlocks())
+			quarantine.add(new QuarantinedBlock(position, size, snapshotEpoch));
+		else
+			allocator.freeBlock(position, size);
 	}
 	
 	
-	public ArchiveEntry add(EntrySource entrySource) throws IOException {
+	/**
+	 * @return True if blocks that are freed can't be reused yet, because a snapshot
+	 * may still read them or the journal may roll back to them.
+	 */
+	private boolean keepFreedBlocks() {
 		
-		if(readOnly)
-			throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+		return !openSnapshots.isEmpty() || changePending;
+	}
+	
+	
+	/**
+	 * Frees the quarantined blocks that no open snapshot can see, unless the journal
+	 * may still roll back to them.
+	 */
+	private void releaseQuarantine() {
 		
-		ArchiveEntry entry = createEntry(entrySource);
-
-		long endOfEntry = entry.getHeaderPosition() + entry.getTotalSize();
-		if(cdPos < endOfEntry)
-			writeCD(endOfEntry);
-		else
-			entry.writeDirectoryListing(cdPos, source);
+		if(changePending)
+			return;
 		
-		eocdPos += 46 + entry.name.length();
-		writeEOCD();		
-		source.flush();	
+		//A block is visible to every snapshot taken before it was freed
+		long oldest = openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.first();
+		while(!quarantine.isEmpty() && quarantine.peek().epoch < oldest) {
+			
+			QuarantinedBlock block = quarantine.poll();
+			allocator.freeBlock(block.position, block.size);
+		}
 		
-		return entry;
+		allocator.trim();
 	}
-
-
-	public void addAll(Collection<EntrySource> entrySources) throws IOException {
+	
+	
+	/**
+	 * Blocks for entries that may be aligned are allocated with room for the most
+	 * padding the entry could need. Once the entry is written and the padding is
+	 * known, the block is shrunk back down to the entry's actual size.
+	 */
+	private void releasePadding(ArchiveEntry entry, long allocatedSize) {
 		
-		if(readOnly)
-			throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+		if(entry.getTotalSize() < allocatedSize)
+			allocator.resize(entry.getHeaderPosition(), allocatedSize, entry.getTotalSize());
+	}
+	
+	
+	/**
+	 * Writes the central directory at the specified position followed by the end of
+	 * central directory record. With the journal enabled, the entries are forced to
+	 * disk and the new directory is recorded in the journal before it is written.
+	 */
+	private void writeDirectory(long position) throws IOException {
+		
+		if(journal == null) {
+			
+			writeCD(position);
+			writeEOCD();
+			source.flush();
+			return;
+		}
+		
+		beginChange();
+		byte[] directory = layoutCD(position);
+		BinaryWriter tail = new BinaryWriter(directory.length + ZIP64_EOCD_SIZE + ZIP64_LOCATOR_SIZE + EOCD_SIZE);
+		tail.writeByteArray(directory);
+		writeEOCD(tail, entries.size(), cdPos, eocdPos - cdPos);
 		
-		if(entrySources.isEmpty())
+		//The journal may only hold the new directory once everything it lists is on disk
+		source.force();
+		journal.commit(cdPos, tail.getRawData(), tail.getPosition());
+		
+		source.write(cdPos, tail.getRawData(), 0, tail.getPosition());
+		source.setLength(cdPos + tail.getPosition());
+		source.force();
+		
+		journal.clear();
+		changePending = false;
+		releaseQuarantine();
+	}
+	
+	
+	/**
+	 * Called before anything in the archive is changed. With the journal enabled, the
+	 * first change since the central directory was written records the directory as
+	 * it is, so the archive can be rolled back to it.
+	 */
+	private void beginChange() throws IOException {
+		
+		if(journal == null || changePending)
 			return;
 		
-		int max = entrySources.size();
-		ZipPrinter.setMaxFiles(max); // [RCS] Update the zip progress printer data.
-		ZipPrinter.updateSubject(0); // [RCS] Update the zip progress printer data.
+		source.flush();
+		long length = source.length() - cdPos;
+		if(length > Integer.MAX_VALUE - 8)
+			throw new IOException("Central directory too large");
+		
+		byte[] tail = new byte[(int) length];
+		source.read(cdPos, tail, 0, tail.length);
+		journal.begin(cdPos, tail);
+		changePending = true;
+	}
+	
+	
+	private void writeCD(long position) throws IOException {
+		
+		byte[] directory = layoutCD(position);
+		source.write(cdPos, directory, 0, directory.length);
+	}
+	
+	
+	/**
+	 * Lays the central directory out at the specified position.
+	 * @return The central directory.
+	 */
+	private byte[] layoutCD(long position) throws IOException {
+		
+		//Listings can change size when entries move past the ZIP64 limit, so they're laid out again
+		cdPos = position;
+		long directoryOffset = 0;
+		for(ArchiveEntry entry: entries) {
+			
+			entry.setDirectoryOffset(directoryOffset);
+			directoryOffset += entry.getDirectorySize();
+		}
+		
+		if(directoryOffset > Integer.MAX_VALUE - 8)
+			throw new IOException("Central directory too large");
+		
+		byte[] directory = new byte[(int) directoryOffset];
+		int offset = 0;
+		for(ArchiveEntry entry: entries) {
+			
+			byte[] record = entry.getDirectoryRecord();
+			System.arraycopy(record, 0, directory, offset, record.length);
+			offset += record.length;
+		}
+		
+		eocdPos = cdPos + directoryOffset;
+		return directory;
+	}
+	
+	
+	public ArchiveEntry add(EntrySource entrySource) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			ArchiveEntry entry = createEntry(entrySource);
+			addToDirectory(entry);
+			
+			return entry;
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Adds the listing of a newly written entry to the central directory, moving the
+	 * directory if the entry was written over it.
+	 */
+	private void addToDirectory(ArchiveEntry entry) throws IOException {
 		
-		PriorityQueue<EntrySource> queue;
-		if(entrySources instanceof PriorityQueue)
-			queue = (PriorityQueue<EntrySource>) entrySources;
+		if(deferDirectory())
+			return;
+
+		long endOfEntry = entry.getHeaderPosition() + entry.getTotalSize();
+		if(cdPos < endOfEntry)
+			writeDirectory(endOfEntry);
+		else if(journal != null)
+			writeDirectory(cdPos); //The journal records the whole directory anyways
 		else {
+			
+			entry.writeDirectoryListing(cdPos, source);
+			eocdPos += entry.getDirectorySize();
+			writeEOCD();		
+			source.flush();	
+		}
+	}
+
 
-			queue = new PriorityQueue<EntrySource>(entrySources.size());
-			queue.addAll(entrySources);
+	/**
+	 * Replaces the contents of an entry. The new data is written over the old data
+	 * when the allocator can resize the entry's block to fit it, in which case only
+	 * the entry's listing in the central directory is updated. Otherwise the entry
+	 * is moved to a new block.
+	 * @param entry The entry to replace.
+	 * @param entrySource The new contents of the entry. The entry keeps its own name.
+	 * @return The entry that replaced the specified entry.
+	 * @throws IOException If the entry is not in this archive, or an error occurs
+	 * while writing the new contents.
+	 */
+	public ArchiveEntry replace(ArchiveEntry entry, EntrySource entrySource) throws IOException {
+		
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			if(!entries.contains(entry))
+				throw new IOException("Entry \"" + entry.name + "\" does not exist in this archive");
+			
+			beginChange();
+			int uncompressedSize = entrySource.uncompressedSize;
+			CompressionInfo compress = entrySource.compress();
+			long size = compress.compressedSize + 30 + entry.name.length() + ArchiveEntry.getMaximumPadding(compress.compressionType, alignment);
+			
+			rewriteCounts.merge(entry.name, 1, Integer::sum);
+			
+			//Data shared with other entries, or that a snapshot may be reading, can't be overwritten
+			entry.readLocalHeader(source);
+			long position = entry.getHeaderPosition();
+			if(blockReferences.containsKey(position) || keepFreedBlocks() || !allocator.resize(position, entry.getTotalSize(), size)) {
+				
+				position = isHot(entry.name) ? allocator.getHighBlock(size) : allocator.getBlock(size);
+				releaseBlock(entry);
+			}
+			
+			source.seek(position);
+			ArchiveEntry replacement = new ArchiveEntry(entry.name, compress.compressedData, entrySource.lastModifiedTime, entrySource.lastModifiedDate, compress.compressionType, entry.getDirectoryOffset(), compress.crc32, compress.compressedSize, uncompressedSize, alignment, source);
+			releasePadding(replacement, size);
+			putEntry(replacement);
+			if(deferDirectory())
+				return replacement;
+			
+			long endOfEntry = replacement.getHeaderPosition() + replacement.getTotalSize();
+			if(cdPos < endOfEntry)
+				writeDirectory(endOfEntry);
+			else if(replacement.getDirectorySize() != entry.getDirectorySize() || journal != null)
+				writeDirectory(cdPos);
+			else {
+				
+				//Nothing else in the directory changed, so only this listing needs to be written
+				replacement.writeDirectoryListing(cdPos, source);
+				source.flush();
+			}
+			
+			return replacement;
+		}finally {
+			
+			lock.writeLock().unlock();
 		}
+	}
+	
+	
+	/**
+	 * Copies an entry from another archive into this one. The entry's compressed data
+	 * is transferred from one file to the other as is, without being decompressed.
+	 * @param other The archive holding the entry.
+	 * @param entry The entry to copy.
+	 * @return The copy of the entry in this archive.
+	 * @throws IOException If the entry is not in the other archive, an entry with the
+	 * same name already exists in this archive, or an error occurs while copying.
+	 */
+	public ArchiveEntry copyFrom(ZipArchive other, ArchiveEntry entry) throws IOException {
 		
-		long endOfEntries = cdPos;
-		while(!queue.isEmpty()) {
-			ArchiveEntry entry = createEntry(queue.poll());
-			eocdPos += 46 + entry.name.length();
+		lock.writeLock().lock();
+		try {
 			
-			ZipPrinter.updateSubject(max - queue.size()); // [RCS] Update the zip progress printer data.
-			ZipPrinter.setFileName(entry.name);
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
 			
-			long endOfEntry = entry.getHeaderPosition() + entry.getTotalSize();
-			if(endOfEntries < endOfEntry)
-				endOfEntries = endOfEntry;
+			if(other == this)
+				throw new IllegalArgumentException("Cannot copy an entry into the archive it came from");
+			
+			if(entries.containsName(entry.name))
+				throw new IOException("Entry \"" + entry.name + "\" already exists in this archive");
+			
+			beginChange();
+			ArchiveEntry copy;
+			long size;
+			other.lock.readLock().lock();
+			try {
+				
+				if(!other.entries.contains(entry))
+					throw new IOException("Entry \"" + entry.name + "\" does not exist in the other archive");
+				
+				entry.readLocalHeader(other.source);
+				size = entry.compressedSize + ArchiveEntry.getLocalHeaderSize(entry.name, entry.compressedSize, entry.uncompressedSize) + ArchiveEntry.getMaximumPadding(entry.compressionType, alignment);
+				
+				source.seek(allocator.getBlock(size));
+				copy = new ArchiveEntry(entry, eocdPos - cdPos, alignment, source);
+				source.transferFrom(other.source, entry.getFilePosition(), entry.compressedSize);
+			}finally {
+				
+				other.lock.readLock().unlock();
+			}
+			
+			releasePadding(copy, size);
+			putEntry(copy);
+			addToDirectory(copy);
+			
+			return copy;
+		}finally {
+			
+			lock.writeLock().unlock();
 		}
+	}
+	
+	
+	public void addAll(Collection<EntrySource> entrySources) throws IOException {
 		
-		writeCD(endOfEntries);
-		writeEOCD();
-		source.flush();
+		lock.writeLock().lock();
+		try {
+			
+			if(readOnly)
+				throw new UnsupportedOperationException("Cannot modify zip entry in read only mode!");
+			
+			if(entrySources.isEmpty())
+				return;
+			
+			int max = entrySources.size();
+			ZipPrinter.setMaxFiles(max); // [RCS] Update the zip progress printer data.
+			ZipPrinter.updateSubject(0); // [RCS] Update the zip progress printer data.
+			
+			PriorityQueue<EntrySource> queue;
+			if(entrySources instanceof PriorityQueue)
+				queue = (PriorityQueue<EntrySource>) entrySources;
+			else {
+
+				queue = new PriorityQueue<EntrySource>(entrySources.size());
+				queue.addAll(entrySources);
+			}
+			
+			long endOfEntries = cdPos;
+			while(!queue.isEmpty()) {
+				ArchiveEntry entry = createEntry(queue.poll());
+				eocdPos += entry.getDirectorySize();
+				
+				ZipPrinter.updateSubject(max - queue.size()); // [RCS] Update the zip progress printer data.
+				ZipPrinter.setFileName(entry.name);
+				
+				long endOfEntry = entry.getHeaderPosition() + entry.getTotalSize();
+				if(endOfEntries < endOfEntry)
+					endOfEntries = endOfEntry;
+			}
+			
+			if(deferDirectory())
+				return;
+			
+			writeDirectory(endOfEntries);
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
 	}
 	
 	
-	private void readEOCD() throws IOException {
+	/**
+	 * Reads the end of central directory record and the central directory itself.
+	 * If the record points to a ZIP64 end of central directory record, the entry
+	 * count, and the size and position of the central directory are read from it
+	 * instead.
+	 * @return True if the central directory is laid out exactly as this archive
+	 * would write it, false if it needs to be rewritten before it can be updated.
+	 */
+	private boolean readEOCD() throws IOException {
 		
-		short entries;
-		int sizeOfCD;
+		long entries;
+		long sizeOfCD;
 		
 		while(true) {
 			
@@ -584,16 +1704,18 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 					throw new IOException("Invalid zip file");
 			}
 			
+			eocdPos = source.getFilePointer() - 4;
 			short diskNum = source.readShort();
 			short directoryDiskNum = source.readShort();
 			short recordsOnDisk = source.readShort();
-			entries = source.readShort();
+			short totalRecords = source.readShort();
 			
-			if(diskNum != directoryDiskNum || recordsOnDisk != entries)
+			if(diskNum != directoryDiskNum || recordsOnDisk != totalRecords)
 				throw new IOException("Unsupported zip archive"); //We don't support zips split into multiple files
 			
-			sizeOfCD = source.readInt();
-			cdPos = source.readInt();
+			entries = totalRecords&65535;
+			sizeOfCD = source.readInt()&ZIP64_MAGIC;
+			cdPos = source.readInt()&ZIP64_MAGIC;
 			short commentLength = source.readShort();
 			if(commentLength == source.length() - source.getFilePointer())
 				break;
@@ -603,246 +1725,448 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 				source.seek(source.getFilePointer() - EOCD_SIZE - 1);
 		}
 		
-		readCD(entries&65535, sizeOfCD);
+		if((entries == 65535 || sizeOfCD == ZIP64_MAGIC || cdPos == ZIP64_MAGIC) && eocdPos >= ZIP64_LOCATOR_SIZE) {
+			
+			source.seek(eocdPos - ZIP64_LOCATOR_SIZE);
+			if(source.readInt() == ZIP64_LOCATOR_SIGNATURE) {
+				
+				if(source.readInt() != 0)
+					throw new IOException("Unsupported zip archive");
+				
+				source.seek(source.readLong());
+				if(source.readInt() != ZIP64_EOCD_SIGNATURE)
+					throw new IOException("Corrupt zip archive");
+				
+				source.readLong(); //Size of record
+				source.readInt(); //Version info
+				int diskNum = source.readInt();
+				int directoryDiskNum = source.readInt();
+				long recordsOnDisk = source.readLong();
+				entries = source.readLong();
+				
+				if(diskNum != directoryDiskNum || recordsOnDisk != entries)
+					throw new IOException("Unsupported zip archive");
+				
+				sizeOfCD = source.readLong();
+				cdPos = source.readLong();
+			}
+		}
+		
+		if(entries > Integer.MAX_VALUE || sizeOfCD > Integer.MAX_VALUE - 8)
+			throw new IOException("Unsupported zip archive"); //The central directory has to fit in memory
+		
+		return readCD((int) entries, (int) sizeOfCD);
 	}
 	
 	
-	private void readCD(int entries, int sizeOfCD) throws IOException{
+	private boolean readCD(int entries, int sizeOfCD) throws IOException{
+		
+		//Read only archives decode each listing when it's first asked for instead, from the mapping if the file is mapped
+		if(this.entries instanceof DirectoryEntryTable) {
+			
+			ByteBuffer directory = source.slice(cdPos, sizeOfCD);
+			if(directory == null) {
+				
+				source.seek(cdPos);
+				directory = ByteBuffer.wrap(source.readByteArray(sizeOfCD));
+			}
+			
+			((DirectoryEntryTable) this.entries).load(directory, entries);
+			eocdPos = cdPos + sizeOfCD;
+			return true;
+		}
 		
 		source.seek(cdPos);
-		BinaryReader reader = new BinaryReader(source.readByteArray(sizeOfCD));
+		byte[] directory = source.readByteArray(sizeOfCD);
+		BinaryReader reader = new BinaryReader(directory);
 		reader.close(); //Doesn't do anything anyways and warnings are annoying
 		
 		long directoryOffset = 0;
 		for(int i = 0; i < entries; ++i) {
 			
-			if(reader.readInt() != CD_SIGNATURE)
-				throw new IOException("Corrupt zip archive");
-			
-			reader.skip(6); //Skip version info & Flags
-			short compressionType = reader.readShort();
-			short lastModifiedTime = reader.readShort();
-			short lastModifiedDate = reader.readShort();
-			
-			int crc32 = reader.readInt();
-			int compressedSize = reader.readInt();
-			int uncompressedSize = reader.readInt();
-			
-			short fileNameLength = reader.readShort();
-			short fileExtraLength = reader.readShort();
-			short fileCommentLength = reader.readShort();
-			
-			reader.skip(8); //Disk number & File attributes
-						
-			int position = reader.readInt();
-			String name = reader.readString(fileNameLength);
-			reader.skip(fileExtraLength + fileCommentLength);
-			
-			if(this.entries.containsKey(name))
+			ArchiveEntry entry = readDirectoryListing(reader, directoryOffset);
+			if(this.entries.containsName(entry.name))
 				continue;
 			
-			ArchiveEntry entry = new ArchiveEntry(compressionType, lastModifiedTime, lastModifiedDate, crc32, compressedSize, uncompressedSize, name, position, directoryOffset);
-			this.entries.put(entry.name, entry);
-			directoryOffset += 46 + fileNameLength + fileExtraLength + fileCommentLength;
+			this.entries.put(entry);
+			directoryOffset += entry.getDirectorySize();
 		}
 		
 		eocdPos = cdPos + directoryOffset;
 		if(reader.hasMoreData())
 			throw new IOException("Corrupt zip archive");
-	}
-	
-	
-	private void writeEOCD() throws IOException {
 		
-		source.seek(eocdPos);
-		source.writeInt(EOCD_SIGNATURE);
-		source.writeShort((short) 0);
-		source.writeShort((short) 0);
-		source.writeShort((short) entries.size());
-		source.writeShort((short) entries.size());
-		source.writeInt((int) (eocdPos - cdPos));
-		source.writeInt((int) cdPos);
-		source.writeShort((short) 0);
-		
-		source.setLength(source.getFilePointer());
-	}
-
-
-	@Override
-	public Iterator<ArchiveEntry> iterator() {
-
-		return new ImmutableIterator<ArchiveEntry>(entries.values().iterator());
+		return directoryOffset == sizeOfCD;
 	}
 	
 	
-	private static byte getSize(long totalCompressedSize2) {
+	/**
+	 * Reads an entry's listing in the central directory, leaving the reader at the
+	 * start of the next listing.
+	 * @param reader A reader positioned at the start of the listing.
+	 * @param directoryOffset The offset to give the entry within the central directory.
+	 * @return The entry the listing describes.
+	 * @throws IOException If the reader is not positioned at a listing.
+	 */
+	protected static ArchiveEntry readDirectoryListing(BinaryReader reader, long directoryOffset) throws IOException {
 		
-		byte b = MINIMUM_BLOCK_SIZE;
-		while((1 << b) < totalCompressedSize2)
-			++b;
+		if(reader.readInt() != CD_SIGNATURE)
+			throw new IOException("Corrupt zip archive");
 		
-		return b;
-	}
-	
-	
-	private static class StorageList{
+		reader.skip(6); //Skip version info & Flags
+		short compressionType = reader.readShort();
+		short lastModifiedTime = reader.readShort();
+		short lastModifiedDate = reader.readShort();
+		
+		int crc32 = reader.readInt();
+		long compressedSize = reader.readInt()&ZIP64_MAGIC;
+		long uncompressedSize = reader.readInt()&ZIP64_MAGIC;
 		
-		private StorageBlock head;
+		int fileNameLength = reader.readShort()&65535;
+		int fileExtraLength = reader.readShort()&65535;
+		int fileCommentLength = reader.readShort()&65535;
 		
+		reader.skip(8); //Disk number & File attributes
+					
+		long position = reader.readInt()&ZIP64_MAGIC;
+		String name = reader.readString(fileNameLength);
 		
-		private void add(StorageBlock block) {
+		int endOfExtra = reader.getPosition() + fileExtraLength;
+		while(reader.getPosition() + 4 <= endOfExtra) {
 			
-			if(head == null)
-				head = block;
-			else if(block.position <= head.position) {
-				
-				block.next = head;
-				head = block;
-			}
-			else {
-				
-				StorageBlock temp = head;
-				while(temp.next != null && block.position > temp.next.position)
-					temp = temp.next;
+			short extraId = reader.readShort();
+			int endOfField = reader.getPosition() + 2 + (reader.readShort()&65535);
+			
+			//The ZIP64 field only holds the values that overflowed, in this order
+			if(extraId == ZIP64_EXTRA_ID) {
 				
-				block.next = temp.next;
-				temp.next = block;
+				if(uncompressedSize == ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					uncompressedSize = reader.readLong();
+				if(compressedSize == ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					compressedSize = reader.readLong();
+				if(position == ZIP64_MAGIC && reader.getPosition() + 8 <= endOfField)
+					position = reader.readLong();
 			}
+			
+			reader.setPosition(endOfField);
 		}
 		
+		reader.setPosition(endOfExtra + fileCommentLength);
+		return new ArchiveEntry(compressionType, lastModifiedTime, lastModifiedDate, crc32, compressedSize, uncompressedSize, name, position, directoryOffset);
+	}
+	
+	
+	private void writeEOCD() throws IOException {
 		
-		private boolean isEmpty() {
-			
-			return head == null;
-		}
+		source.seek(eocdPos);
+		writeEOCD(source, entries.size(), cdPos, eocdPos - cdPos);
 		
+		source.setLength(source.getFilePointer());
+	}
+	
+	
+	/**
+	 * Writes the end of central directory record, preceded by a ZIP64 end of central
+	 * directory record and locator if any of its values don't fit in the standard
+	 * record. The records are assumed to be written directly after the central directory.
+	 */
+	private static void writeEOCD(BinaryOutput output, int entries, long cdPos, long cdSize) throws IOException {
 		
-		private StorageBlock remove() {
+		if(entries >= 65535 || cdSize >= ZIP64_MAGIC || cdPos >= ZIP64_MAGIC) {
 			
-			StorageBlock temp = head;
-			head = head.next;
-			temp.next = null;
+			output.writeInt(ZIP64_EOCD_SIGNATURE);
+			output.writeLong(ZIP64_EOCD_SIZE - 12);
+			output.writeShort(ArchiveEntry.ZIP64_VERSION_NUMBER);
+			output.writeShort(ArchiveEntry.ZIP64_VERSION_NUMBER);
+			output.writeInt(0);
+			output.writeInt(0);
+			output.writeLong(entries);
+			output.writeLong(entries);
+			output.writeLong(cdSize);
+			output.writeLong(cdPos);
 			
-			return temp;
+			output.writeInt(ZIP64_LOCATOR_SIGNATURE);
+			output.writeInt(0);
+			output.writeLong(cdPos + cdSize);
+			output.writeInt(1);
 		}
 		
+		output.writeInt(EOCD_SIGNATURE);
+		output.writeShort((short) 0);
+		output.writeShort((short) 0);
+		output.writeShort((short) Math.min(entries, 65535));
+		output.writeShort((short) Math.min(entries, 65535));
+		output.writeInt((int) Math.min(cdSize, ZIP64_MAGIC));
+		output.writeInt((int) Math.min(cdPos, ZIP64_MAGIC));
+		output.writeShort((short) 0);
+	}
+	
+	
+	/**
+	 * Takes a snapshot of the entries in this archive as they are now. The snapshot
+	 * can be read from any thread without taking this archive's lock, and keeps
+	 * reading the same data however the archive changes afterwards: blocks freed
+	 * while the snapshot is open are quarantined rather than reused, and entries are
+	 * never replaced in place, until every snapshot that can see them is closed.
+	 * Snapshots must be closed before this archive is.
+	 * @return A read only view of the current entries.
+	 * @throws IOException If an error occurs while writing buffered data to the file.
+	 */
+	public ArchiveSnapshot snapshot() throws IOException {
 		
-		private StorageBlock remove(long position) {
+		lock.writeLock().lock();
+		try {
 			
-			if(head == null)
-				return null;
+			//Snapshots read the file directly, so everything they can see has to be in it
+			source.flush();
+			LinkedHashMap<String, ArchiveEntry> pinned = new LinkedHashMap<>();
+			for(ArchiveEntry entry: entries)
+				pinned.put(entry.name, entry.getTable() == null ? entry : entry.detach());
 			
-			StorageBlock temp = head;
-			if(temp.position == position) {
-				
-				head = temp.next;
-				temp.next = null;
-				return temp;
-			}
+			long epoch = ++snapshotEpoch;
+			openSnapshots.add(epoch);
+			return new ArchiveSnapshot(this, source.reader(), pinned, epoch);
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Called when a snapshot or stream is closed. Frees the quarantined blocks that no
+	 * snapshot or stream still open can see.
+	 */
+	protected void releaseSnapshot(long epoch) {
+		
+		lock.writeLock().lock();
+		try {
 			
-			while(temp.next != null && temp.next.position < position)
-				temp = temp.next;
+			if(!openSnapshots.remove(epoch))
+				return;
 			
-			if(temp.next == null || temp.next.position != position)
-				return null;
+			releaseQuarantine();
+		}finally {
 			
-			StorageBlock toReturn = temp.next;
-			temp.next = toReturn.next;
-			toReturn.next = null;
-			return toReturn;
+			lock.writeLock().unlock();
 		}
-		
-		
-		private StorageBlock removeAfter(long after) {
+	}
+	
+	
+	/**
+	 * Writes a densely packed copy of this archive to the specified path. Entries
+	 * are copied exactly as they are stored, without being decompressed, and are
+	 * placed one after another with no free space between them. The path must not
+	 * be the file backing this archive, instead the copy should be moved over it
+	 * once this archive has been closed. Stored entries are aligned to this
+	 * archive's alignment at their new positions.
+	 * @param out The file to write the compacted archive to. If it already exists
+	 * it is overwritten.
+	 * @throws IOException If an error is encountered while reading this archive, or
+	 * writing the new one.
+	 */
+	public void compact(Path out) throws IOException {
+		
+		compact(out, getAlignment());
+	}
+	
+	
+	/**
+	 * Writes a densely packed copy of this archive to the specified path, aligning the
+	 * data of stored entries to the specified number of bytes. Each local header is
+	 * written again with the padding its new position needs, and only the entry's
+	 * data is copied as it is stored.
+	 * @param out The file to write the compacted archive to. If it already exists
+	 * it is overwritten.
+	 * @param alignment The alignment in bytes, a power of two no greater than 32768.
+	 * An alignment of 1 leaves the data unaligned.
+	 * @throws IOException If an error is encountered while reading this archive, or
+	 * writing the new one.
+	 */
+	public void compact(Path out, int alignment) throws IOException {
+		
+		if(alignment < 1 || alignment > 32768 || (alignment & (alignment - 1)) != 0)
+			throw new IllegalArgumentException("Alignment must be a power of two no greater than 32768");
+		
+		lock.readLock().lock();
+		try {
 			
-			if(head == null)
-				return null;
+			//The read lock is enough: flush is synchronized, and readLocalHeader only caches a size every reader agrees on
+			source.flush();
+			BinaryWriter directory = new BinaryWriter();
 			
-			StorageBlock temp = head;
-			if(temp.position >= after) {
+			try(FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
 				
-				head = temp.next;
-				temp.next = null;
-				return temp;
+				long position = 0;
+				HashMap<Long, Long> copied = new HashMap<>();
+				for(ArchiveEntry entry: entries) {
+					
+					//Shared data is only copied once
+					Long copy = copied.get(entry.getHeaderPosition());
+					if(copy != null) {
+						
+						entry.writeDirectoryListing(directory, copy);
+						continue;
+					}
+					
+					copied.put(entry.getHeaderPosition(), position);
+					entry.readLocalHeader(source);
+					
+					//The old header's padding only fits the old position, so the header is written again
+					BinaryWriter header = new BinaryWriter(ArchiveEntry.getLocalHeaderSize(entry.name, entry.compressedSize, entry.uncompressedSize) + ArchiveEntry.getMaximumPadding(entry.compressionType, alignment));
+					ArchiveEntry packed = new ArchiveEntry(entry, position, 0, alignment, header);
+					ByteBuffer buffer = ByteBuffer.wrap(header.getRawData(), 0, header.getPosition());
+					while(buffer.hasRemaining())
+						channel.write(buffer);
+					
+					source.transferTo(entry.getFilePosition(), entry.compressedSize, channel);
+					packed.writeDirectoryListing(directory, position);
+					position += packed.getTotalSize();
+				}
+				
+				writeEOCD(directory, entries.size(), position, directory.getPosition());
+				
+				ByteBuffer buffer = ByteBuffer.wrap(directory.getRawData(), 0, directory.getPosition());
+				while(buffer.hasRemaining())
+					channel.write(buffer);
 			}
+		}finally {
 			
-			while(temp.next != null && temp.next.position < after)
-				temp = temp.next;
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Writes this archive, exactly as it is stored, to the specified path. The whole
+	 * archive is written to a temporary file beside the path and then moved over it
+	 * in one step, so anything reading the path sees either the archive it held
+	 * before or the complete new one, never a partly written one, even if the system
+	 * crashes right after the move. This is most useful for archives created with
+	 * {@link #inMemory()}.
+	 * @param out The file to write the archive to. If it already exists it is replaced.
+	 * @throws IOException If an error is encountered while writing or moving the file.
+	 * @throws IllegalStateException If a batch is open, since the archive isn't valid
+	 * until it is committed.
+	 */
+	public void publishTo(Path out) throws IOException {
+		
+		lock.readLock().lock();
+		try {
 			
-			if(temp.next == null)
-				return null;
+			if(batch)
+				throw new IllegalStateException("Cannot publish while a batch is open");
+			
+			//Flushing is synchronized, so readers flushing at the same time still write the buffered bytes once
+			source.flush();
+			Path temporary = out.resolveSibling(out.getFileName() + ".tmp");
+			try {
+				
+				try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+					
+					source.transferTo(0, source.length(), channel);
+					
+					//The data has to be on disk before the move is, or a crash could publish an empty file
+					channel.force(true);
+				}
+				
+				Files.move(temporary, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				forceDirectory(out.toAbsolutePath().getParent());
+			}finally {
+				
+				Files.deleteIfExists(temporary);
+			}
+		}finally {
 			
-			StorageBlock toReturn = temp.next;
-			temp.next = toReturn.next;
-			toReturn.next = null;
-			return toReturn;
+			lock.readLock().unlock();
 		}
+	}
+	
+	
+	/**
+	 * Forces a directory's entries to disk, so that a file moved into it stays moved
+	 * after a crash. Not every platform can open a directory to force it, in which case
+	 * the move is left to reach the disk on its own.
+	 */
+	private static void forceDirectory(Path directory) {
 		
+		if(directory == null)
+			return;
 		
-		private boolean hasAfter(long after) {
+		try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)){
 			
-			if(head == null)
-				return false;
+			channel.force(true);
+		}catch(IOException e) {
 			
-			StorageBlock temp = head;
-			if(temp.position > after)
-				return true;
+			//Windows refuses to open directories as channels
+		}
+	}
+
+
+	/**
+	 * Iterates over the entries in the order they're listed in the central directory.
+	 * Unlike reading entries, iterating is not guarded against changes made by other
+	 * threads, so the archive must not be modified while the iterator is in use.
+	 */
+	@Override
+	public Iterator<ArchiveEntry> iterator() {
+
+		return new ImmutableIterator<ArchiveEntry>(entries.iterator());
+	}
+	
+	
+	/**
+	 * Identifies compressed data that might be identical to data already in the archive.
+	 * The checksum has already been computed for every entry, so no extra hashing is needed.
+	 */
+	private static class Payload{
+		
+		private final int crc32;
+		private final long compressedSize;
+		private final long uncompressedSize;
+		private final short compressionType;
+		
+		
+		private Payload(int crc32, long compressedSize, long uncompressedSize, short compressionType) {
 			
-			while(temp.next != null && temp.next.position < after)
-				temp = temp.next;
+			this.crc32 = crc32;
+			this.compressedSize = compressedSize;
+			this.uncompressedSize = uncompressedSize;
+			this.compressionType = compressionType;
+		}
+		
+		
+		@Override
+		public int hashCode() {
 			
-			return temp.next != null;
+			return crc32 ^ Long.hashCode(compressedSize * 31 + uncompressedSize);
 		}
 		
 		
-		private boolean hasBlock(long position) {
+		@Override
+		public boolean equals(Object o) {
 			
-			if(head == null)
+			if(!(o instanceof Payload))
 				return false;
 			
-			StorageBlock temp = head;
-			if(temp.position == position)
-				return true;
-			
-			while(temp.next != null && temp.next.position < position)
-				temp = temp.next;
-			
-			return temp.next != null && temp.next.position == position;
+			Payload other = (Payload) o;
+			return crc32 == other.crc32 && compressedSize == other.compressedSize && uncompressedSize == other.uncompressedSize && compressionType == other.compressionType;
 		}
+	}
+	
+	
+	private static class QuarantinedBlock{
 		
+		private final long position;
+		private final long size;
+		private final long epoch;
 		
-		private StorageBlock getBuddy(StorageBlock block) {
-
-			if(head == null)
-				return null;
-			
-			long buddyPos = block.position ^ (1 << block.size);
+		
+		private QuarantinedBlock(long position, long size, long epoch) {
 			
-			StorageBlock temp = head;
-			if(head.position == buddyPos) {
-				
-				head = temp.next;
-				temp.next = null;
-				return temp;
-			}
-			else {
-				
-				while(temp.next != null && temp.next.position < buddyPos)
-					temp = temp.next;
-				
-				if(temp.next == null)
-					return null;
-				
-				if(temp.next.position == buddyPos) {
-					
-					StorageBlock buddy = temp.next;
-					temp.next = buddy.next;
-					buddy.next = null;
-					return buddy;
-				}
-				
-				return null;
-			}
+			this.position = position;
+			this.size = size;
+			this.epoch = epoch;
 		}
 	}
 	
@@ -863,36 +2187,27 @@ public class ZipArchive implements Iterable<ArchiveEntry>, AutoCloseable{
 		@Override
 		public int compareTo(EntryLayout o) {
 			
-			return (int) (o.position - position);
+			return Long.compare(o.position, position);
 		}
 	}
 	
 	
-	private static class StorageBlock{
-
-		private long position;
-		private byte size;
-		private StorageBlock next;
-		
-		
-		private StorageBlock(long position, byte size) {
-
-			this.position = position;
-			this.size = size;
-		}
-		
-		
-		private StorageBlock split() {
-			
-			--size;
-			return new StorageBlock(position | (1<<size), size);
-		}
-	}
-
-
 	@Override
 	public void close() throws IOException {
 		
-		source.close();
+		lock.writeLock().lock();
+		try {
+			
+			if(batch)
+				commit();
+			
+			if(journal != null)
+				journal.close(changePending);
+			
+			source.close();
+		}finally {
+			
+			lock.writeLock().unlock();
+		}
 	}
 }
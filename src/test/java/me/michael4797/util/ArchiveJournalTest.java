@@ -0,0 +1,123 @@
+package me.michael4797.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that an archive left behind by a journaled change that was cut short is
+ * put back the way it was before the change. A crash is simulated by copying the
+ * archive and its journal while a batch is open: the copies hold exactly what a
+ * process killed at that point would have left on disk.
+ */
+public class ArchiveJournalTest{
+
+	private final Random random = new Random(7);
+	private File directory;
+	private File crashed;
+	private Map<String, byte[]> before;
+
+
+	@Before
+	public void crashDuringBatch() throws IOException {
+
+		directory = Files.createTempDirectory("archive-journal-test").toFile();
+		File file = new File(directory, "journaled.zip");
+		crashed = new File(directory, "crashed.zip");
+		before = new LinkedHashMap<>();
+
+		try(ZipArchive archive = new ZipArchive(file)) {
+
+			archive.setJournaled(true);
+			for(int i = 0; i < 20; ++i) {
+
+				byte[] data = data(2000 + i * 10);
+				archive.add("entry" + i, data);
+				before.put("entry" + i, data);
+			}
+
+			archive.beginBatch();
+			for(int i = 0; i < 10; ++i)
+				archive.replace(archive.getEntry("entry" + i), new EntrySource("entry" + i, data(9000)));
+
+			archive.remove("entry15");
+			archive.add("added", data(5000));
+
+			Files.copy(file.toPath(), crashed.toPath());
+			Files.copy(ZipArchive.getJournalFile(file).toPath(), ZipArchive.getJournalFile(crashed).toPath());
+			archive.commit();
+		}
+	}
+
+
+	@After
+	public void deleteDirectory() {
+
+		ZipArchiveTest.deleteRecursively(directory);
+	}
+
+
+	@Test
+	public void recoverRollsBackAnOpenBatch() throws IOException {
+
+		assertTrue(ZipArchive.recover(crashed));
+		assertFalse(ZipArchive.getJournalFile(crashed).exists());
+		ZipArchiveTest.assertContents(crashed, before);
+	}
+
+
+	@Test
+	public void openingForWritingRecovers() throws IOException {
+
+		try(ZipArchive archive = new ZipArchive(crashed)) {
+
+			for(ArchiveEntry entry: archive)
+				archive.verify(entry);
+		}
+
+		assertFalse(ZipArchive.getJournalFile(crashed).exists());
+		ZipArchiveTest.assertContents(crashed, before);
+	}
+
+
+	@Test
+	public void recoverRestoresATornDirectory() throws IOException {
+
+		//The end of central directory record is lost, as if the crash cut off the last write
+		try(RandomAccessFile file = new RandomAccessFile(crashed, "rw")) {
+
+			file.seek(file.length() - 22);
+			file.write(new byte[22]);
+		}
+
+		assertTrue(ZipArchive.recover(crashed));
+		ZipArchiveTest.assertContents(crashed, before);
+	}
+
+
+	@Test
+	public void recoverWithoutJournalDoesNothing() throws IOException {
+
+		ZipArchive.getJournalFile(crashed).delete();
+		assertFalse(ZipArchive.recover(crashed));
+	}
+
+
+	private byte[] data(int length) {
+
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+}
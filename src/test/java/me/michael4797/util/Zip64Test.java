@@ -0,0 +1,203 @@
+package me.michael4797.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the parts of archives that only ZIP64 can describe: more entries than the
+ * standard end of central directory record can count, and entries stored further
+ * into the archive than a standard listing can point.
+ */
+public class Zip64Test{
+
+	private static final long FOUR_GIGABYTES = 4294967296L;
+	private static final long OFFSET = 5L << 30;
+
+	private final Random random = new Random(64);
+	private File directory;
+
+
+	@Before
+	public void createDirectory() throws IOException {
+
+		directory = Files.createTempDirectory("zip64-test").toFile();
+	}
+
+
+	@After
+	public void deleteDirectory() {
+
+		ZipArchiveTest.deleteRecursively(directory);
+	}
+
+
+	@Test
+	public void moreEntriesThanTheStandardRecordCounts() throws IOException {
+
+		File file = new File(directory, "many.zip");
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		List<EntrySource> sources = new ArrayList<>();
+		for(int i = 0; i < 70000; ++i) {
+
+			byte[] data = ("entry " + i).getBytes("US-ASCII");
+			expected.put("e/" + i, data);
+			sources.add(new EntrySource("e/" + i, data));
+		}
+
+		try(ZipArchive archive = new ZipArchive(file)) {
+
+			archive.addAll(sources);
+		}
+
+		ZipArchiveTest.assertContents(file, expected);
+		try(ZipArchive archive = new ZipArchive(file, false, new CompactEntryTable())) {
+
+			assertEquals(expected.size(), archive.entryCount());
+			archive.remove("e/0");
+			expected.remove("e/0");
+		}
+
+		ZipArchiveTest.assertContents(file, expected);
+	}
+
+
+	@Test
+	public void entriesPastFourGigabytes() throws IOException {
+
+		//Nothing is written below the offset, so the file is sparse on most file systems
+		File file = new File(directory, "far.zip");
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		try(ZipArchive archive = new ZipArchive(file, new OffsetAllocator(OFFSET))) {
+
+			for(int i = 0; i < 20; ++i)
+				add(archive, expected, "far/" + i, data(random.nextInt(5000) + 1, i % 2 == 0));
+
+			byte[] data = data(3, false);
+			archive.replace(archive.getEntry("far/3"), new EntrySource("far/3", data));
+			expected.put("far/3", data);
+			archive.remove("far/4");
+			expected.remove("far/4");
+		}
+
+		assertTrue(file.length() > FOUR_GIGABYTES);
+		ZipArchiveTest.assertContents(file, expected);
+
+		try(ZipArchive archive = new ZipArchive(file, new OffsetAllocator(OFFSET))) {
+
+			assertEquals(expected.size(), archive.entryCount());
+			add(archive, expected, "far/new", data(100, true));
+			for(Map.Entry<String, byte[]> entry: expected.entrySet())
+				assertArrayEquals(entry.getKey(), entry.getValue(), archive.extract(archive.getEntry(entry.getKey())));
+		}
+
+		ZipArchiveTest.assertContents(file, expected);
+	}
+
+
+	private static void add(ZipArchive archive, Map<String, byte[]> expected, String name, byte[] data) throws IOException {
+
+		expected.put(name, data);
+		archive.add(name, data);
+	}
+
+
+	private byte[] data(int length, boolean compressible) {
+
+		byte[] data = new byte[length];
+		if(compressible)
+			for(int i = 0; i < length; ++i)
+				data[i] = (byte) ('a' + i % 5);
+		else
+			random.nextBytes(data);
+
+		return data;
+	}
+
+
+	/**
+	 * Places every block a fixed distance into the archive, so that entries are
+	 * stored past the point a standard listing can describe without having to
+	 * write gigabytes of data first.
+	 */
+	private static class OffsetAllocator implements BlockAllocator{
+
+		private final ExtentAllocator allocator = new ExtentAllocator();
+		private final long offset;
+
+
+		private OffsetAllocator(long offset) {
+
+			this.offset = offset;
+		}
+
+
+		@Override
+		public long getBlock(long size) {
+
+			return allocator.getBlock(size) + offset;
+		}
+
+
+		@Override
+		public boolean getBlock(long size, long position) {
+
+			return position >= offset && allocator.getBlock(size, position - offset);
+		}
+
+
+		@Override
+		public long getBlockAfter(long size, long after) {
+
+			return allocator.getBlockAfter(size, Math.max(0, after - offset)) + offset;
+		}
+
+
+		@Override
+		public long getHighBlock(long size) {
+
+			return allocator.getHighBlock(size) + offset;
+		}
+
+
+		@Override
+		public void freeBlock(long position, long size) {
+
+			allocator.freeBlock(position - offset, size);
+		}
+
+
+		@Override
+		public boolean resize(long position, long oldSize, long newSize) {
+
+			return allocator.resize(position - offset, oldSize, newSize);
+		}
+
+
+		@Override
+		public long trim() {
+
+			return allocator.trim() + offset;
+		}
+
+
+		@Override
+		public long getBlockSize(long size) {
+
+			return allocator.getBlockSize(size);
+		}
+	}
+}
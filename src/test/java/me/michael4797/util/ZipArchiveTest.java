@@ -0,0 +1,285 @@
+package me.michael4797.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes archives through every table and allocator, changes them, and checks that
+ * what's read back, both by this library and by {@link ZipFile}, is what was written.
+ */
+public class ZipArchiveTest{
+
+	private final Random random = new Random(42);
+	private File directory;
+
+
+	@Before
+	public void createDirectory() throws IOException {
+
+		directory = Files.createTempDirectory("zip-archive-test").toFile();
+	}
+
+
+	@After
+	public void deleteDirectory() {
+
+		deleteRecursively(directory);
+	}
+
+
+	@Test
+	public void roundTripWithLinkedTable() throws IOException {
+
+		roundTrip(false, false);
+	}
+
+
+	@Test
+	public void roundTripWithCompactTable() throws IOException {
+
+		roundTrip(true, false);
+	}
+
+
+	@Test
+	public void roundTripWithExtentAllocator() throws IOException {
+
+		roundTrip(false, true);
+		roundTrip(true, true);
+	}
+
+
+	@Test
+	public void compactKeepsEveryEntry() throws IOException {
+
+		File file = new File(directory, "compact.zip");
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		try(ZipArchive archive = new ZipArchive(file)) {
+
+			archive.setAlignment(4096);
+			for(int i = 0; i < 40; ++i)
+				add(archive, expected, "entry" + i, data(random.nextInt(20000), i % 2 == 0));
+
+			for(int i = 0; i < 40; i += 3) {
+
+				archive.remove("entry" + i);
+				expected.remove("entry" + i);
+			}
+		}
+
+		File compacted = new File(directory, "compacted.zip");
+		try(ZipArchive archive = new ZipArchive(file, true)) {
+
+			archive.compact(compacted.toPath());
+		}
+
+		assertContents(compacted, expected);
+		try(ZipArchive archive = new ZipArchive(compacted, true)) {
+
+			for(ArchiveEntry entry: archive)
+				archive.verify(entry);
+		}
+	}
+
+
+	@Test
+	public void removingAMissingEntryThrows() throws IOException {
+
+		File file = new File(directory, "missing.zip");
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		try(ZipArchive archive = new ZipArchive(file)) {
+
+			add(archive, expected, "kept", data(1000, true));
+			try {
+
+				archive.remove("missing");
+				fail("Removing a missing entry should throw");
+			}catch(IOException e) {
+
+				//Expected
+			}
+
+			ArchiveEntry removed = add(archive, expected, "removed", data(1000, false));
+			archive.remove(removed);
+			expected.remove("removed");
+			try {
+
+				archive.remove(removed);
+				fail("Removing an entry twice should throw");
+			}catch(IOException e) {
+
+				//Expected
+			}
+		}
+
+		assertContents(file, expected);
+	}
+
+
+	/**
+	 * Builds an archive, then reopens it for writing several times to remove, replace
+	 * and add entries, checking its contents after each time.
+	 */
+	private void roundTrip(boolean compact, boolean extent) throws IOException {
+
+		File file = new File(directory, "round-trip-" + compact + "-" + extent + ".zip");
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		try(ZipArchive archive = open(file, compact, extent)) {
+
+			for(int i = 0; i < 100; ++i)
+				add(archive, expected, "dir" + (i % 4) + "/entry" + i, data(random.nextInt(i % 10 == 0 ? 100000 : 4000), random.nextBoolean()));
+		}
+
+		assertContents(file, expected);
+		for(int round = 0; round < 5; ++round) {
+
+			try(ZipArchive archive = open(file, compact, extent)) {
+
+				List<String> names = new ArrayList<>(expected.keySet());
+				for(int i = 0; i < 10; ++i) {
+
+					String name = names.get(random.nextInt(names.size()));
+					if(expected.remove(name) != null)
+						archive.remove(name);
+				}
+
+				for(int i = 0; i < 10; ++i) {
+
+					String name = names.get(random.nextInt(names.size()));
+					ArchiveEntry entry = archive.getEntry(name);
+					if(entry == null)
+						continue;
+
+					byte[] data = data(random.nextInt(8000), random.nextBoolean());
+					archive.replace(entry, new EntrySource(name, data));
+					expected.put(name, data);
+				}
+
+				for(int i = 0; i < 10; ++i)
+					add(archive, expected, "round" + round + "/entry" + i, data(random.nextInt(6000), random.nextBoolean()));
+
+				for(Map.Entry<String, byte[]> entry: expected.entrySet())
+					assertArrayEquals(entry.getKey(), entry.getValue(), archive.extract(archive.getEntry(entry.getKey())));
+			}
+
+			assertContents(file, expected);
+		}
+	}
+
+
+	private static ZipArchive open(File file, boolean compact, boolean extent) throws IOException {
+
+		EntryTable table = compact ? new CompactEntryTable() : new LinkedEntryTable();
+		if(extent)
+			return new ZipArchive(file, new ExtentAllocator(), table);
+
+		return new ZipArchive(file, false, table);
+	}
+
+
+	private static ArchiveEntry add(ZipArchive archive, Map<String, byte[]> expected, String name, byte[] data) throws IOException {
+
+		expected.put(name, data);
+		return archive.add(name, data);
+	}
+
+
+	/**
+	 * @return Data that either compresses well or, being random, not at all.
+	 */
+	private byte[] data(int length, boolean compressible) {
+
+		byte[] data = new byte[length];
+		if(!compressible) {
+
+			random.nextBytes(data);
+			return data;
+		}
+
+		for(int i = 0; i < length; ++i)
+			data[i] = (byte) ('a' + i % 7);
+
+		return data;
+	}
+
+
+	/**
+	 * Checks the contents of an archive with {@link ZipFile}, and with this library
+	 * both read only and memory mapped.
+	 */
+	protected static void assertContents(File file, Map<String, byte[]> expected) throws IOException {
+
+		try(ZipFile zip = new ZipFile(file)) {
+
+			int count = 0;
+			for(Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ++count) {
+
+				ZipEntry entry = entries.nextElement();
+				byte[] data = expected.get(entry.getName());
+				assertNotNull("Unexpected entry " + entry.getName(), data);
+				try(InputStream in = zip.getInputStream(entry)) {
+
+					assertArrayEquals(entry.getName(), data, readFully(in));
+				}
+			}
+
+			assertEquals(expected.size(), count);
+		}
+
+		try(ZipArchive archive = new ZipArchive(file, true)) {
+
+			assertEquals(expected.size(), archive.entryCount());
+			for(ArchiveEntry entry: archive)
+				assertArrayEquals(entry.name, expected.get(entry.name), archive.extract(entry));
+		}
+
+		try(ZipArchive archive = ZipArchive.openMapped(file)) {
+
+			for(Map.Entry<String, byte[]> entry: expected.entrySet())
+				assertArrayEquals(entry.getKey(), entry.getValue(), archive.extract(archive.getEntry(entry.getKey())));
+		}
+	}
+
+
+	private static byte[] readFully(InputStream in) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+
+		return out.toByteArray();
+	}
+
+
+	protected static void deleteRecursively(File file) {
+
+		File[] children = file.listFiles();
+		if(children != null)
+			for(File child: children)
+				deleteRecursively(child);
+
+		file.delete();
+	}
+}